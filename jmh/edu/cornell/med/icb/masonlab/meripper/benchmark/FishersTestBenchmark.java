@@ -0,0 +1,51 @@
+package edu.cornell.med.icb.masonlab.meripper.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.cornell.med.icb.masonlab.meripper.util.FisherPValueCache;
+import edu.cornell.med.icb.masonlab.meripper.util.FishersTestThread;
+import edu.cornell.med.icb.masonlab.meripper.util.WindowCounts;
+import edu.cornell.med.icb.masonlab.meripper.util.WindowPValues;
+
+/**
+ * FishersTestThread over a whole chromosome of HotPathData's window counts, with a fresh p-value
+ * cache per invocation as in a run. One operation is one window.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class FishersTestBenchmark {
+	private WindowCounts sample, control;
+	
+	@Setup
+	public void setup() {
+		WindowCounts[] counts = HotPathData.windowCounts(HotPathData.CHR_SIZE, HotPathData.STEP_SIZE, HotPathData.SEED);
+		sample = counts[0];
+		control = counts[1];
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(HotPathData.WINDOWS)
+	public WindowPValues fisher() {
+		int reads = HotPathData.FISHER_READS;
+		WindowPValues significant = new WindowPValues();
+		FisherPValueCache pvalues = new FisherPValueCache(reads, reads, 1000000);
+		new FishersTestThread(sample, control, reads, reads, HotPathData.STEP_SIZE, significant, pvalues).call();
+		return significant;
+	}
+}
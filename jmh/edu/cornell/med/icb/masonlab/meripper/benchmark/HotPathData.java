@@ -0,0 +1,163 @@
+package edu.cornell.med.icb.masonlab.meripper.benchmark;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import edu.cornell.med.icb.masonlab.jenotator.io.input.Bed6IntervalReader;
+import edu.cornell.med.icb.masonlab.jenotator.model.interval.Bed6Interval;
+import edu.cornell.med.icb.masonlab.meripper.util.ReadBatch;
+import edu.cornell.med.icb.masonlab.meripper.util.WindowCounts;
+import edu.cornell.med.icb.masonlab.meripper.util.WindowPValues;
+
+/**
+ * The synthetic inputs of the hot path benchmarks: one chr1 at 25 bp windows, everything drawn
+ * from the seed.
+ */
+class HotPathData {
+	static final String CHR = "chr1";
+	static final int CHR_SIZE = 248956422;
+	static final int WINDOW_SIZE = 25;
+	static final int STEP_SIZE = WINDOW_SIZE;
+	static final int WINDOWS = CHR_SIZE / STEP_SIZE + 1;
+	static final int READS = 2000000;
+	static final int PVALUES = 1000000;
+	static final long SEED = 1;
+	// the library sizes the Fisher's tests are run with
+	static final int FISHER_READS = 20000000;
+	// spliced genes, each with SITES donor and SITES acceptor sites joined in every combination
+	static final int GENES = 2000;
+	static final int SITES = 20;
+	static final int SITE_SPACING = 500;
+	static final int JUNCTIONS = GENES * SITES * SITES;
+	
+	/**
+	 * Uniformly placed reads: mostly one 50-100 bp block, one in five spliced into two or three blocks.
+	 */
+	static ReadBatch reads(int chr_size, int reads, long seed) {
+		Random random = new Random(seed);
+		ReadBatch batch = new ReadBatch(reads);
+		for(int i = 0; i < reads; i++) {
+			batch.addRead(CHR);
+			int start = 1 + random.nextInt(Math.max(1, chr_size - 20000));
+			int blocks = random.nextInt(5) == 0 ? 2 + random.nextInt(2) : 1;
+			for(int b = 0; b < blocks; b++) {
+				int length = 50 + random.nextInt(51);
+				batch.addBlock(start, length);
+				start += length + 100 + random.nextInt(4900);
+			}
+		}
+		return batch;
+	}
+	
+	/**
+	 * Sample and control counts of a whole chromosome. Most windows hold a few reads, one in a
+	 * hundred a peak of up to 500.
+	 */
+	static WindowCounts[] windowCounts(int chr_size, int step_size, long seed) {
+		Random random = new Random(seed);
+		int numWindows = WindowCounts.numWindows(chr_size, step_size);
+		WindowCounts sample = new WindowCounts(numWindows);
+		WindowCounts control = new WindowCounts(numWindows);
+		for(int w = 0; w < numWindows; w++) {
+			boolean peak = random.nextInt(100) == 0;
+			sample.set(w, peak ? random.nextInt(500) : random.nextInt(6));
+			control.set(w, peak ? random.nextInt(100) : random.nextInt(6));
+		}
+		return new WindowCounts[] {sample, control};
+	}
+	
+	/**
+	 * The retained windows of a chromosome: runs of 1-20 consecutive windows covering about 5% of
+	 * it, p-values log-uniform below 0.05.
+	 */
+	static WindowPValues retainedWindows(int chr_size, int step_size, long seed) {
+		Random random = new Random(seed);
+		int numWindows = WindowCounts.numWindows(chr_size, step_size);
+		WindowPValues pvalues = new WindowPValues();
+		for(int w = 0; w < numWindows; ) {
+			w += random.nextInt(400);
+			int run = 1 + random.nextInt(20);
+			for(int i = 0; i < run && w < numWindows; i++, w++) {
+				pvalues.add(w * step_size, 0.05 * Math.pow(10, -6 * random.nextDouble()));
+			}
+		}
+		return pvalues;
+	}
+	
+	/**
+	 * The splice junctions of GENES genes spread over a chromosome: in each, SITES donor sites in the
+	 * first half, one per SITE_SPACING, each joined to all SITES acceptor sites in the second half.
+	 */
+	static Map<Integer, Set<Integer>> spliceJunctions(int chr_size, long seed) {
+		Random random = new Random(seed);
+		Map<Integer, Set<Integer>> junctions = new HashMap<Integer, Set<Integer>>();
+		for(int g = 0; g < GENES; g++) {
+			int gene = geneStart(chr_size, g);
+			int[] acceptors = new int[SITES];
+			for(int k = 0; k < SITES; k++) {
+				acceptors[k] = gene + (SITES + k) * SITE_SPACING + random.nextInt(SITE_SPACING - 50);
+			}
+			for(int k = 0; k < SITES; k++) {
+				Set<Integer> ends = new HashSet<Integer>();
+				for(int acceptor : acceptors) {
+					ends.add(acceptor);
+				}
+				junctions.put(gene + k * SITE_SPACING + 50 + random.nextInt(SITE_SPACING - 50), ends);
+			}
+		}
+		return junctions;
+	}
+	
+	/**
+	 * The p-values of spliceJunctions' chromosome: every window of a gene body retained, so each
+	 * gene is one long merged window holding all its junction flanks, and none outside genes.
+	 */
+	static WindowPValues geneWindows(int chr_size, int step_size, long seed) {
+		Random random = new Random(seed);
+		WindowPValues pvalues = new WindowPValues();
+		for(int g = 0; g < GENES; g++) {
+			int gene = geneStart(chr_size, g);
+			for(int start = gene / step_size * step_size; start < gene + 2 * SITES * SITE_SPACING; start += step_size) {
+				pvalues.add(start, 0.05 * Math.pow(10, -6 * random.nextDouble()));
+			}
+		}
+		return pvalues;
+	}
+	
+	private static int geneStart(int chr_size, int g) {
+		return (int) ((long) chr_size * g / GENES) + SITE_SPACING;
+	}
+	
+	/**
+	 * <code>size</code> BED6 windows spread over a chromosome with uniform p-values as scores,
+	 * written to a temporary file and read back through Bed6IntervalReader as PValueWindowFilter
+	 * reads them.
+	 */
+	static Bed6Interval[] bedWindows(int chr_size, int step_size, int size, long seed) throws Exception {
+		Random random = new Random(seed);
+		File file = File.createTempFile("padjust", ".bed");
+		file.deleteOnExit();
+		PrintStream out = new PrintStream(file);
+		int stride = Math.max(1, chr_size / step_size / size);
+		for(int i = 0; i < size; i++) {
+			int start = i * stride * step_size;
+			out.println(CHR + "\t" + start + "\t" + (start + step_size) + "\t.\t" + random.nextDouble() + "\t+");
+		}
+		out.close();
+		
+		List<Bed6Interval> list = new ArrayList<Bed6Interval>();
+		Bed6IntervalReader reader = new Bed6IntervalReader(file.getPath());
+		while(reader.hasNext()) {
+			list.add(reader.next());
+		}
+		file.delete();
+		return list.toArray(new Bed6Interval[list.size()]);
+	}
+}
@@ -0,0 +1,75 @@
+package edu.cornell.med.icb.masonlab.meripper.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.cornell.med.icb.masonlab.meripper.util.Interval;
+import edu.cornell.med.icb.masonlab.meripper.util.JunctionIndex;
+import edu.cornell.med.icb.masonlab.meripper.util.WindowFilterJunctionsSweepThread;
+import edu.cornell.med.icb.masonlab.meripper.util.WindowFilterJunctionsThread;
+import edu.cornell.med.icb.masonlab.meripper.util.WindowPValues;
+
+/**
+ * The junction filter over HotPathData's spliced genes, with the IntervalTree version it replaced
+ * (from the test sources) for comparison. Every gene is one long merged window holding all its
+ * flanks and a quarter of the flanks are significant. One operation is one junction.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class JunctionFilterBenchmark {
+	@Param({"tree", "sweep"})
+	public String filter;
+	
+	private WindowPValues pvalues;
+	private Map<Integer, Set<Integer>> junctions_map;
+	private JunctionIndex junctions;
+	private double[] junction_pvalues;
+	
+	@Setup
+	public void setup() {
+		pvalues = HotPathData.geneWindows(HotPathData.CHR_SIZE, HotPathData.STEP_SIZE, HotPathData.SEED);
+		junctions_map = HotPathData.spliceJunctions(HotPathData.CHR_SIZE, HotPathData.SEED);
+		junctions = new JunctionIndex(junctions_map, HotPathData.WINDOW_SIZE);
+		
+		Random random = new Random(HotPathData.SEED);
+		junction_pvalues = new double[junctions.size()];
+		for(int id = 0; id < junctions.size(); id++) {
+			junction_pvalues[id] = random.nextInt(4) == 0 ? 0.001 : 1.0;
+		}
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(HotPathData.JUNCTIONS)
+	public List<Interval> filter() throws Exception {
+		List<Interval> windows = new ArrayList<Interval>();
+		if(filter.equals("tree")) {
+			new WindowFilterJunctionsThread(pvalues, junctions, junction_pvalues, junctions_map,
+					HotPathData.WINDOW_SIZE, HotPathData.CHR_SIZE, 100, windows, 0.05).call();
+		} else {
+			new WindowFilterJunctionsSweepThread(pvalues, junctions, junction_pvalues, junctions_map,
+					HotPathData.WINDOW_SIZE, HotPathData.CHR_SIZE, 100, windows, 0.05).call();
+		}
+		return windows;
+	}
+}
@@ -0,0 +1,58 @@
+package edu.cornell.med.icb.masonlab.meripper.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.cornell.med.icb.masonlab.jenotator.model.interval.Bed6Interval;
+import edu.cornell.med.icb.masonlab.meripper.util.PAdjust;
+
+/**
+ * PAdjust's Benjamini-Hochberg over HotPathData's BED6 windows, as PValueWindowFilter runs it.
+ * adjust() overwrites the scores, so they are restored before every invocation. One operation is
+ * one window.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class PAdjustBenchmark {
+	private Bed6Interval[] windows;
+	private double[] scores;
+	
+	@Setup
+	public void setup() throws Exception {
+		windows = HotPathData.bedWindows(HotPathData.CHR_SIZE, HotPathData.STEP_SIZE, HotPathData.PVALUES, HotPathData.SEED);
+		scores = new double[windows.length];
+		for(int i = 0; i < windows.length; i++) {
+			scores[i] = windows[i].getScore();
+		}
+	}
+	
+	@Setup(Level.Invocation)
+	public void restore() {
+		for(int i = 0; i < windows.length; i++) {
+			windows[i].setScore(scores[i]);
+		}
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(HotPathData.PVALUES)
+	public Bed6Interval[] adjust() {
+		PAdjust.adjust("BenjaminiHochberg", 0.05, windows, HotPathData.CHR_SIZE / HotPathData.STEP_SIZE);
+		return windows;
+	}
+}
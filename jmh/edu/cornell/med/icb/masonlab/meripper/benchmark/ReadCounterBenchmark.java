@@ -0,0 +1,58 @@
+package edu.cornell.med.icb.masonlab.meripper.benchmark;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.cornell.med.icb.masonlab.meripper.util.ReadBatch;
+import edu.cornell.med.icb.masonlab.meripper.util.ReadCounter;
+import edu.cornell.med.icb.masonlab.meripper.util.WindowCounts;
+
+/**
+ * ReadCounter.count(ReadBatch) over HotPathData's reads, into plain and difference (deltas)
+ * counters. One operation is one read.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class ReadCounterBenchmark {
+	@Param({"false", "true"})
+	public boolean deltas;
+	
+	private ReadBatch batch;
+	private ReadCounter counter;
+	
+	@Setup
+	public void setup() {
+		batch = HotPathData.reads(HotPathData.CHR_SIZE, HotPathData.READS, HotPathData.SEED);
+		
+		// the counters are not reset between invocations: counting into them costs the same however
+		// high the counts are, and a fresh set per invocation would show up in the allocation profile
+		Map<String, WindowCounts> counters = new HashMap<String, WindowCounts>();
+		counters.put(HotPathData.CHR, new WindowCounts(HotPathData.WINDOWS, deltas));
+		counter = new ReadCounter(new File(HotPathData.CHR), null, counters, HotPathData.WINDOW_SIZE, HotPathData.STEP_SIZE);
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(HotPathData.READS)
+	public int count() {
+		return counter.count(batch);
+	}
+}
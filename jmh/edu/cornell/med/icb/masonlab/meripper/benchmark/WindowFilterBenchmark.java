@@ -0,0 +1,49 @@
+package edu.cornell.med.icb.masonlab.meripper.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.cornell.med.icb.masonlab.meripper.util.Interval;
+import edu.cornell.med.icb.masonlab.meripper.util.WindowFilterThread;
+import edu.cornell.med.icb.masonlab.meripper.util.WindowPValues;
+
+/**
+ * WindowFilterThread over HotPathData's retained windows of a chromosome. The number of retained
+ * windows is only known once drawn, so one operation is one window of the chromosome, about 20 for
+ * each retained one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class WindowFilterBenchmark {
+	private WindowPValues pvalues;
+	
+	@Setup
+	public void setup() {
+		pvalues = HotPathData.retainedWindows(HotPathData.CHR_SIZE, HotPathData.STEP_SIZE, HotPathData.SEED);
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(HotPathData.WINDOWS)
+	public List<Interval> filter() {
+		List<Interval> windows = new ArrayList<Interval>();
+		new WindowFilterThread(pvalues, HotPathData.WINDOW_SIZE, HotPathData.CHR_SIZE, 100, windows, 0.001).call();
+		return windows;
+	}
+}
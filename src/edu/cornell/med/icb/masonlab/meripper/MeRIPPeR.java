@@ -1,23 +1,20 @@
 package edu.cornell.med.icb.masonlab.meripper;
 
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SamReader;
-import htsjdk.samtools.SamReaderFactory;
-import htsjdk.samtools.ValidationStringency;
-import htsjdk.samtools.util.IntervalTree;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -33,13 +30,29 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
 import edu.cornell.med.icb.masonlab.jenotator.activity.GetChromosomeSizes;
+import edu.cornell.med.icb.masonlab.meripper.peakfinder.WindowSplitter;
+import edu.cornell.med.icb.masonlab.meripper.util.AnnotationLoader;
+import edu.cornell.med.icb.masonlab.meripper.util.BedWriter;
+import edu.cornell.med.icb.masonlab.meripper.util.CountCache;
+import edu.cornell.med.icb.masonlab.meripper.util.CountProgress;
+import edu.cornell.med.icb.masonlab.meripper.util.FisherPValueCache;
 import edu.cornell.med.icb.masonlab.meripper.util.FishersTestJunctionThread;
 import edu.cornell.med.icb.masonlab.meripper.util.FishersTestThread;
 import edu.cornell.med.icb.masonlab.meripper.util.Interval;
+import edu.cornell.med.icb.masonlab.meripper.util.JunctionIndex;
+import edu.cornell.med.icb.masonlab.meripper.util.MultiWindowReadCounter;
+import edu.cornell.med.icb.masonlab.meripper.util.PValueHistogram;
+import edu.cornell.med.icb.masonlab.meripper.util.PipelinedReadCounter;
+import edu.cornell.med.icb.masonlab.meripper.util.ProgressReporter;
 import edu.cornell.med.icb.masonlab.meripper.util.ReadCounter;
 import edu.cornell.med.icb.masonlab.meripper.util.ReadCounterJunctions;
-import edu.cornell.med.icb.masonlab.meripper.util.WindowFilterJunctionsThread;
+import edu.cornell.med.icb.masonlab.meripper.util.RunMetrics;
+import edu.cornell.med.icb.masonlab.meripper.util.StreamingWindowTester;
+import edu.cornell.med.icb.masonlab.meripper.util.WindowCounts;
+import edu.cornell.med.icb.masonlab.meripper.util.WindowCountsFactory;
+import edu.cornell.med.icb.masonlab.meripper.util.WindowFilterJunctionsSweepThread;
 import edu.cornell.med.icb.masonlab.meripper.util.WindowFilterThread;
+import edu.cornell.med.icb.masonlab.meripper.util.WindowPValues;
 
 public class MeRIPPeR {
 	private static int WINDOW_SIZE = 25;
@@ -49,8 +62,24 @@ public class MeRIPPeR {
 	private static double ALPHA = 0.05;
 	private static String P_ADJUST = "BenjaminiHochberg";
 	private static int MIN_WINDOW_SIZE = 100;
+	private static int MAX_WINDOW_SIZE = 0;
 	private static boolean JUNCTIONS = false;
-
+	private static boolean STREAMING = false;
+	private static int PVALUE_CACHE_SIZE = 1000000;
+	private static boolean EARLY_TERMINATION = false;
+	private static boolean DIFFERENCE_COUNTS = false;
+	private static boolean PIPELINE = false;
+	private static int BATCH_SIZE = 4096;
+	private static int QUEUE_DEPTH = 4;
+	private static int INFLATE_THREADS = 0;
+	private static File COUNT_CACHE = null;
+	private static int[][] WINDOWS = null;
+	private static File METRICS_OUT = null;
+	private static RunMetrics METRICS = new RunMetrics("MeRIPPeR");
+	private static int PROGRESS_INTERVAL = 60;
+	private static ProgressReporter PROGRESS;
+	private static long MAX_MEMORY = 0;
+	
 	public static void main(String[] args) {
 		CommandLineParser parser = new GnuParser();
 		Options options = new Options();
@@ -60,21 +89,41 @@ public class MeRIPPeR {
 			CommandLine cmd = parser.parse(options, args, true);
 			processCmd(cmd);
 			ExecutorService threadPool = Executors.newFixedThreadPool(NUM_THREADS);
-			PrintStream windowPrintStream = new PrintStream(new File(cmd.getOptionValue("output")));
 			
-			// window maps
-			Map<String, Map<Integer, Double>> significantWindows = new HashMap<String, Map<Integer, Double>>();
-			Map<String, IntervalTree<Double>> junctions = new HashMap<String, IntervalTree<Double>>();
-			Map<String, Map<Integer, Set<Integer>>> junctions_map = new HashMap<String, Map<Integer, Set<Integer>>>();
+			if(WINDOWS != null) {
+				// one read of the inputs, one output per window configuration
+				multiWindowRuns(cmd, threadPool);
+				threadPool.shutdown();
+				writeMetrics();
+				return;
+			}
 			
-			// counts & fishers
-			windowCountsFishers(cmd, threadPool, significantWindows, junctions, junctions_map);
+			BedWriter windowWriter = new BedWriter(new File(cmd.getOptionValue("output")));
 			
-			// p-value adjustment
-			pValueAdjustment(significantWindows);
+			Map<String, List<Interval>> filteredWindows;
+			if(STREAMING) {
+				// counts, fishers, p-value adjustment and filtering in bounded memory
+				filteredWindows = streamingWindows(cmd);
+			} else {
+				// window maps
+				Map<String, WindowPValues> significantWindows = new HashMap<String, WindowPValues>();
+				Map<String, JunctionIndex> junctions = new HashMap<String, JunctionIndex>();
+				Map<String, double[]> junction_pvalues = new HashMap<String, double[]>();
+				Map<String, Map<Integer, Set<Integer>>> junctions_map = new HashMap<String, Map<Integer, Set<Integer>>>();
+				
+				// counts & fishers
+				windowCountsFishers(cmd, threadPool, significantWindows, junctions, junction_pvalues, junctions_map);
+				
+				// p-value adjustment
+				pValueAdjustment(threadPool, significantWindows);
+				
+				// filter the final windows
+				filteredWindows = filterWindows(threadPool, significantWindows, junctions, junction_pvalues, junctions_map);
+			}
 			
-			// print out the final windows
-			printFilteredWindows(threadPool, significantWindows, junctions, junctions_map, windowPrintStream);
+			// split long windows and print out the final windows
+			splitWindows(filteredWindows);
+			printFilteredWindows(threadPool, filteredWindows, windowWriter);
 			
 			// shutdown the threadpool
 			threadPool.shutdown();
@@ -82,7 +131,8 @@ public class MeRIPPeR {
 				Thread.sleep(1000);
 			}
 			
-			windowPrintStream.close();
+			windowWriter.close();
+			writeMetrics();
 		} catch(ParseException e) {
 			e.printStackTrace();
 			System.err.println("Improper arguments");
@@ -138,46 +188,148 @@ public class MeRIPPeR {
 			MIN_WINDOW_SIZE = Integer.parseInt(cmd.getOptionValue("min-window"));
 		}
 		
+		if(cmd.hasOption("max-window")) {
+			MAX_WINDOW_SIZE = Integer.parseInt(cmd.getOptionValue("max-window"));
+			
+			if(MAX_WINDOW_SIZE < 1) {
+				throw new IllegalArgumentException("--max-window must be at least 1");
+			}
+		}
+		
+		if(cmd.hasOption("pvalue-cache-size")) {
+			PVALUE_CACHE_SIZE = Integer.parseInt(cmd.getOptionValue("pvalue-cache-size"));
+		}
+		
+		if(cmd.hasOption("difference-counts")) {
+			DIFFERENCE_COUNTS = true;
+		}
+		
+		if(cmd.hasOption("pipeline")) {
+			PIPELINE = true;
+		}
+		
+		if(cmd.hasOption("batch-size")) {
+			BATCH_SIZE = Integer.parseInt(cmd.getOptionValue("batch-size"));
+		}
+		
+		if(cmd.hasOption("queue-depth")) {
+			QUEUE_DEPTH = Integer.parseInt(cmd.getOptionValue("queue-depth"));
+		}
+		
+		if(cmd.hasOption("inflate-threads")) {
+			INFLATE_THREADS = Integer.parseInt(cmd.getOptionValue("inflate-threads"));
+		}
+		
+		if(BATCH_SIZE < 1 || QUEUE_DEPTH < 1) {
+			throw new IllegalArgumentException("--batch-size and --queue-depth must be at least 1");
+		}
+		
+		if(cmd.hasOption("early-termination")) {
+			EARLY_TERMINATION = true;
+		}
+		
+		if(cmd.hasOption("count-cache")) {
+			COUNT_CACHE = new File(cmd.getOptionValue("count-cache"));
+			if(!COUNT_CACHE.isDirectory() && !COUNT_CACHE.mkdirs()) {
+				throw new IOException("Cannot create count cache directory " + COUNT_CACHE);
+			}
+		}
+		
+		if(cmd.hasOption("windows")) {
+			String[] windows = cmd.getOptionValues("windows");
+			WINDOWS = new int[windows.length][];
+			for(int i = 0; i < windows.length; i++) {
+				// window[:step], the step defaulting to the window size
+				String[] fields = windows[i].split(":");
+				int window = Integer.parseInt(fields[0]);
+				int step = fields.length > 1 ? Integer.parseInt(fields[1]) : window;
+				WINDOWS[i] = new int[] {window, step};
+				
+				if(step > window) {
+					System.err.println("WARNING: computing windows with STEP_SIZE=" + step + 
+							" > WINDOW_SIZE=" + window + ". Windows are not overlapping or book-ended!");
+				}
+			}
+			
+			if(cmd.hasOption("genes") || cmd.hasOption("junctions") || cmd.hasOption("streaming") || COUNT_CACHE != null) {
+				throw new IllegalArgumentException("--windows does not support --genes, --junctions, --streaming or --count-cache");
+			}
+		}
+		
+		if(cmd.hasOption("streaming")) {
+			STREAMING = true;
+			
+			if(cmd.hasOption("genes") || cmd.hasOption("junctions")) {
+				throw new IllegalArgumentException("Streaming mode does not support --genes or --junctions");
+			}
+			
+			if(COUNT_CACHE != null) {
+				throw new IllegalArgumentException("Streaming mode does not support --count-cache");
+			}
+		}
+		
+		if(cmd.hasOption("metrics-out")) {
+			METRICS_OUT = new File(cmd.getOptionValue("metrics-out"));
+			METRICS.sampleHeap();
+		}
+		
+		if(cmd.hasOption("progress-interval")) {
+			PROGRESS_INTERVAL = Integer.parseInt(cmd.getOptionValue("progress-interval"));
+		}
+		PROGRESS = new ProgressReporter(PROGRESS_INTERVAL);
+		
+		if(cmd.hasOption("max-memory")) {
+			MAX_MEMORY = WindowCountsFactory.parseBytes(cmd.getOptionValue("max-memory"));
+		}
+		
 		GENOME_SIZES = GetChromosomeSizes.get(genomeSizesFilename);
 		
+		METRICS.parameter("merip", Arrays.toString(cmd.getOptionValues("merip")));
+		METRICS.parameter("control", Arrays.toString(cmd.getOptionValues("control")));
+		if(WINDOWS != null) {
+			METRICS.parameter("windows", Arrays.toString(cmd.getOptionValues("windows")));
+		} else {
+			METRICS.parameter("window_size", WINDOW_SIZE);
+			METRICS.parameter("step_size", STEP_SIZE);
+		}
+		METRICS.parameter("threads", NUM_THREADS);
+		METRICS.parameter("alpha", ALPHA);
+		METRICS.parameter("p_adjust", P_ADJUST);
+		METRICS.parameter("chromosomes", GENOME_SIZES.size());
+		METRICS.parameter("max_memory", MAX_MEMORY);
+		METRICS.parameter("mode", STREAMING ? "streaming" : PIPELINE ? "pipeline" : INFLATE_THREADS > 0 ? "inflate" : "batch");
+		
 		System.out.println("WINDOW_SIZE: " + WINDOW_SIZE);
 		System.out.println("STEP_SIZE: " + STEP_SIZE);
 	}
-
-	@SuppressWarnings("rawtypes")
-	public static void windowCountsFishers(CommandLine cmd, ExecutorService threadPool, Map<String, Map<Integer, Double>> significantWindows,
-			Map<String, IntervalTree<Double>> junctions, Map<String, Map<Integer, Set<Integer>>> junctions_map) throws IOException {
+	
+	public static void windowCountsFishers(CommandLine cmd, ExecutorService threadPool, Map<String, WindowPValues> significantWindows,
+			Map<String, JunctionIndex> junctions, Map<String, double[]> junction_pvalues, 
+			Map<String, Map<Integer, Set<Integer>>> junctions_map) throws IOException, InterruptedException, ExecutionException {
 		System.out.println("MeRIPPeR: Window Counter & Fisher's Test...started");
 		
 		/*
 		 * Readers and Output
 		 */
-		final SamReader sampleReader, controlReader;
 		int sampleReadCounts, controlReadCounts;
 		String[] sampleFilenames = cmd.getOptionValues("merip");
 		String[] controlFilenames = cmd.getOptionValues("control");
 		
 		/*
-		 * Counters
+		 * Per-chromosome results
 		 */
-		Map<String, Map<Integer, Integer>> sample_counters = new HashMap<String, Map<Integer, Integer>>();
-		Map<String, Map<Integer, Integer>> control_counters = new HashMap<String, Map<Integer, Integer>>();
 		for(String s : GENOME_SIZES.keySet()) {
-			sample_counters.put(s, new HashMap<Integer, Integer>());
-			control_counters.put(s,  new HashMap<Integer, Integer>());
-			significantWindows.put(s,  new HashMap<Integer, Double>());
-			junctions.put(s,  new IntervalTree<Double>());
+			significantWindows.put(s,  new WindowPValues());
 			junctions_map.put(s, new HashMap<Integer, Set<Integer>>());
 		}
 		
 		/*
 		 * Junction-specific counters and maps
 		 */
-		Map<String, Map<IntervalTree.Node<Double>, Integer>> junctions_merip_counter = null, 
-				junctions_control_counter = null;
+		RunMetrics.Stage annotations = METRICS.stage("annotations").start();
 		if(cmd.hasOption("genes")) {
 			JUNCTIONS = true;
-			addJunctionsFromGenes(junctions, junctions_map, cmd.getOptionValue("genes"));
+			annotations.add("gene_junctions", AnnotationLoader.loadGenes(threadPool, new File(cmd.getOptionValue("genes")), junctions_map));
 		}
 		
 		if(cmd.hasOption("junctions")) {
@@ -187,22 +339,19 @@ public class MeRIPPeR {
 				minimum_coverage = Integer.parseInt(cmd.getOptionValue("junctions-min-coverage"));
 			}
 			
-			addJunctionsFromFile(junctions, junctions_map, cmd.getOptionValue("junctions"), minimum_coverage);
+			annotations.add("file_junctions", AnnotationLoader.loadJunctions(threadPool, new File(cmd.getOptionValue("junctions")), 
+					minimum_coverage, junctions_map));
 		}
-
-		if(JUNCTIONS) {
-			junctions_merip_counter = new HashMap<String, Map<IntervalTree.Node<Double>, Integer>>();
-			junctions_control_counter = new HashMap<String, Map<IntervalTree.Node<Double>, Integer>>();
-			for(String chr : junctions.keySet()) {
-				junctions_merip_counter.put(chr,  new HashMap<IntervalTree.Node<Double>, Integer>());
-				junctions_control_counter.put(chr,  new HashMap<IntervalTree.Node<Double>, Integer>());
-				
-				for(Iterator<IntervalTree.Node<Double>> i = junctions.get(chr).iterator(); i.hasNext();) {
-					IntervalTree.Node<Double> node = i.next();
-					junctions_merip_counter.get(chr).put(node,  0);
-					junctions_control_counter.get(chr).put(node,  0);
-				}
-			}
+		annotations.stop();
+		
+		// flatten the junctions into per-chromosome indexes, untested junctions keep p = 1
+		for(String s : GENOME_SIZES.keySet()) {
+			JunctionIndex index = new JunctionIndex(junctions_map.get(s), WINDOW_SIZE);
+			junctions.put(s, index);
+			
+			double[] pvalues = new double[index.size()];
+			Arrays.fill(pvalues, 1.0);
+			junction_pvalues.put(s, pvalues);
 		}
 		
 		/* TODO: Implement other formats
@@ -221,187 +370,764 @@ public class MeRIPPeR {
 		}
 		*/
 		
-		sampleReader = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(new File(sampleFilenames[0]));
-		controlReader = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(new File(controlFilenames[0]));
-		
-		System.err.println("Reading in sample reads from: " + sampleFilenames[0]);
-		System.err.println("Reading in control reads from: " + controlFilenames[0]);
+		/*
+		 * Counters: one set per input file, all files counted concurrently and then
+		 * merged into the pooled sample and control totals
+		 */
+		List<Map<String, WindowCounts>> sample_file_counters = new ArrayList<Map<String, WindowCounts>>();
+		List<Map<String, WindowCounts>> control_file_counters = new ArrayList<Map<String, WindowCounts>>();
+		List<Map<String, int[]>> junctions_merip_file_counters = new ArrayList<Map<String, int[]>>();
+		List<Map<String, int[]>> junctions_control_file_counters = new ArrayList<Map<String, int[]>>();
 		
-		Future<Integer> sampleReaderFuture, controlReaderFuture;
-		if(junctions_merip_counter != null) {
-			sampleReaderFuture = threadPool.submit(new ReadCounterJunctions(sampleReader, sample_counters, 
-					junctions, junctions_merip_counter, WINDOW_SIZE, STEP_SIZE));
-			controlReaderFuture = threadPool.submit(new ReadCounterJunctions(controlReader, control_counters,
-					junctions, junctions_control_counter, WINDOW_SIZE, STEP_SIZE));
-		} else {
-			sampleReaderFuture = threadPool.submit(new ReadCounter(sampleReader, sample_counters, 
-					WINDOW_SIZE, STEP_SIZE));
-			controlReaderFuture = threadPool.submit(new ReadCounter(controlReader, control_counters,
-					WINDOW_SIZE, STEP_SIZE));
-		}
+		// a pool of its own: the counting tasks block on the blocks it inflates
+		ExecutorService inflaters = INFLATE_THREADS > 0 ? Executors.newFixedThreadPool(INFLATE_THREADS) : null;
 		
 		try {
-			// try to wait until the two threads finish
+			// with --count-cache, files whose counts are cached are loaded instead of read; the others are
+			// read as usual and their counts written to the cache once done
+			List<CountCache> sampleCachesToWrite = new ArrayList<CountCache>();
+			List<CountCache> controlCachesToWrite = new ArrayList<CountCache>();
+			
+			WindowCountsFactory counterFactory = counterFactory(new int[][] {{WINDOW_SIZE, STEP_SIZE}}, sampleFilenames, controlFilenames);
+			
 			long startTime = System.currentTimeMillis();
-			sampleReadCounts = sampleReaderFuture.get();
-			controlReadCounts = controlReaderFuture.get();
-			long readTime = System.currentTimeMillis();
+			RunMetrics.Stage counting = METRICS.stage("count").start();
+			PROGRESS.start();
+			List<List<Future<Integer>>> sampleReaderFutures = new ArrayList<List<Future<Integer>>>();
+			for(String filename : sampleFilenames) {
+				System.err.println("Reading in sample reads from: " + filename);
+				sampleReaderFutures.add(submitReadCounters(threadPool, inflaters, new File(filename), counterFactory, junctions, 
+						sample_file_counters, junctions_merip_file_counters, sampleCachesToWrite));
+			}
 			
-			System.err.println("Read " + sampleReadCounts + " from " + sampleFilenames[0]);
-			System.err.println("Read " + controlReadCounts + " from " + controlFilenames[0]);
-			System.err.println("Reading took " + ((readTime - startTime) / 1000) + " seconds");
-			System.err.println("Read counting completed.");
+			List<List<Future<Integer>>> controlReaderFutures = new ArrayList<List<Future<Integer>>>();
+			for(String filename : controlFilenames) {
+				System.err.println("Reading in control reads from: " + filename);
+				controlReaderFutures.add(submitReadCounters(threadPool, inflaters, new File(filename), counterFactory, junctions, 
+						control_file_counters, junctions_control_file_counters, controlCachesToWrite));
+			}
 			
-			System.err.println("Starting Fishers Exact Tests.");
-			// now submit fishers threads
-			List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
-			for(String chr : GENOME_SIZES.keySet()) {
-				futures.add(threadPool.submit(new FishersTestThread(sample_counters.get(chr), control_counters.get(chr), 
-						sampleReadCounts, controlReadCounts, significantWindows.get(chr))));
-				
-				if(junctions.get(chr).size() > 0) {
-					futures.add(threadPool.submit(new FishersTestJunctionThread(junctions_merip_counter.get(chr), 
-							junctions_control_counter.get(chr), sampleReadCounts, controlReadCounts, junctions.get(chr))));
-				}
+			// try to wait until the counting tasks finish
+			sampleReadCounts = 0;
+			for(int i = 0; i < sampleFilenames.length; i++) {
+				int count = sum(sampleReaderFutures.get(i));
+				System.err.println("Read " + count + " from " + sampleFilenames[i]);
+				sampleReadCounts += count;
+				writeCountCache(sampleCachesToWrite.get(i), count, sample_file_counters.get(i), 
+						JUNCTIONS ? junctions_merip_file_counters.get(i) : null);
+			}
+			
+			controlReadCounts = 0;
+			for(int i = 0; i < controlFilenames.length; i++) {
+				int count = sum(controlReaderFutures.get(i));
+				System.err.println("Read " + count + " from " + controlFilenames[i]);
+				controlReadCounts += count;
+				writeCountCache(controlCachesToWrite.get(i), count, control_file_counters.get(i), 
+						JUNCTIONS ? junctions_control_file_counters.get(i) : null);
 			}
 			
-			// now "get" the Futures and cause a wait
-			for(Future future : futures) {
-				future.get();
+			Map<String, WindowCounts> sample_counters = mergeWindowCounters(sample_file_counters);
+			Map<String, WindowCounts> control_counters = mergeWindowCounters(control_file_counters);
+			Map<String, int[]> junctions_merip_counter = mergeJunctionCounters(junctions_merip_file_counters);
+			Map<String, int[]> junctions_control_counter = mergeJunctionCounters(junctions_control_file_counters);
+			long readTime = System.currentTimeMillis();
+			PROGRESS.stop();
+			counting.stop();
+			countMetrics(counting, sampleReadCounts, controlReadCounts);
+			
+			if(sampleFilenames.length > 1 || controlFilenames.length > 1) {
+				System.err.println("Pooled " + sampleReadCounts + " sample and " + controlReadCounts + " control reads.");
 			}
+			System.err.println("Reading took " + ((readTime - startTime) / 1000) + " seconds");
+			System.err.println("Read counting completed.");
 			
-			long endTime = System.currentTimeMillis();
-			System.err.println("Fishers Exact Test tasks completed in " + ((endTime - readTime) / 1000) + " seconds.");
+			fishersTests(threadPool, sample_counters, control_counters, junctions_merip_counter, junctions_control_counter, 
+					sampleReadCounts, controlReadCounts, significantWindows, junctions, junction_pvalues);
 		} catch (InterruptedException e) {
 			e.printStackTrace();
 		} catch (ExecutionException e) {
 			e.printStackTrace();
 		} finally {
-			sampleReader.close();
-			controlReader.close();
+			if(inflaters != null) {
+				inflaters.shutdown();
+			}
 			System.err.println("MeRIPPeR PeakFinder: Window Counter & Fisher's Test...finished.");
 		}
 	}
 	
-	private static void addJunctionsFromGenes(Map<String, IntervalTree<Double>> junctions,
-			Map<String, Map<Integer, Set<Integer>>>junctions_map,
-			String genesFilename) throws FileNotFoundException {
-		Scanner reader = new Scanner(new File(genesFilename));
-		while(reader.hasNextLine()) {
-			String[] line = reader.nextLine().split("\t");
-			String chr = line[0];
-			
-			if(junctions.containsKey(chr)) {
-				int txStart = Integer.parseInt(line[1]);
-				// int txEnd = Integer.parseInt(line[2]);
-				int nExons = Integer.parseInt(line[9]);
-				
-				String[] exonLengths = line[10].split(",");
-				String[] exonStarts = line[11].split(",");
-				
-				for(int i = 0; i < nExons - 1; i++) {
-					int start = txStart + Integer.parseInt(exonStarts[i]) + Integer.parseInt(exonLengths[i]) - 1;
-					int end = txStart + Integer.parseInt(exonStarts[i + 1]);
-					addJunction(junctions.get(chr), junctions_map.get(chr), start, end);
-				}
+	/**
+	 * Parameter sweep over the --windows configurations. The inputs are read once, every read counted
+	 * into each configuration's counters; each configuration is then tested, adjusted and filtered on
+	 * its own, with the same alpha, and written to its own output file (see windowsOutput).
+	 */
+	private static void multiWindowRuns(CommandLine cmd, ExecutorService threadPool) 
+			throws IOException, InterruptedException, ExecutionException {
+		System.out.println("MeRIPPeR: Window Counter for " + WINDOWS.length + " window configurations...started");
+		String[] sampleFilenames = cmd.getOptionValues("merip");
+		String[] controlFilenames = cmd.getOptionValues("control");
+		
+		// per configuration, one set of counters per input file
+		List<List<Map<String, WindowCounts>>> sample_file_counters = new ArrayList<List<Map<String, WindowCounts>>>();
+		List<List<Map<String, WindowCounts>>> control_file_counters = new ArrayList<List<Map<String, WindowCounts>>>();
+		for(int c = 0; c < WINDOWS.length; c++) {
+			sample_file_counters.add(new ArrayList<Map<String, WindowCounts>>());
+			control_file_counters.add(new ArrayList<Map<String, WindowCounts>>());
+		}
+		
+		ExecutorService inflaters = INFLATE_THREADS > 0 ? Executors.newFixedThreadPool(INFLATE_THREADS) : null;
+		long startTime;
+		int sampleReadCounts;
+		int controlReadCounts;
+		try {
+			WindowCountsFactory counterFactory = counterFactory(WINDOWS, sampleFilenames, controlFilenames);
+			
+			startTime = System.currentTimeMillis();
+			RunMetrics.Stage counting = METRICS.stage("count").start();
+			PROGRESS.start();
+			List<List<Future<Integer>>> sampleReaderFutures = new ArrayList<List<Future<Integer>>>();
+			for(String filename : sampleFilenames) {
+				System.err.println("Reading in sample reads from: " + filename);
+				sampleReaderFutures.add(submitMultiWindowCounters(threadPool, inflaters, new File(filename), counterFactory, 
+						sample_file_counters));
+			}
+			
+			List<List<Future<Integer>>> controlReaderFutures = new ArrayList<List<Future<Integer>>>();
+			for(String filename : controlFilenames) {
+				System.err.println("Reading in control reads from: " + filename);
+				controlReaderFutures.add(submitMultiWindowCounters(threadPool, inflaters, new File(filename), counterFactory, 
+						control_file_counters));
+			}
+			
+			sampleReadCounts = 0;
+			for(int i = 0; i < sampleFilenames.length; i++) {
+				int count = sum(sampleReaderFutures.get(i));
+				System.err.println("Read " + count + " from " + sampleFilenames[i]);
+				sampleReadCounts += count;
+			}
+			
+			controlReadCounts = 0;
+			for(int i = 0; i < controlFilenames.length; i++) {
+				int count = sum(controlReaderFutures.get(i));
+				System.err.println("Read " + count + " from " + controlFilenames[i]);
+				controlReadCounts += count;
+			}
+			
+			PROGRESS.stop();
+			counting.stop();
+			countMetrics(counting, sampleReadCounts, controlReadCounts);
+		} finally {
+			if(inflaters != null) {
+				inflaters.shutdown();
+			}
+		}
+		System.err.println("Reading took " + ((System.currentTimeMillis() - startTime) / 1000) + " seconds");
+		
+		double alpha = ALPHA;
+		for(int c = 0; c < WINDOWS.length; c++) {
+			// the rest of the pipeline reads the configuration from the globals; BH adjustment overwrites ALPHA
+			WINDOW_SIZE = WINDOWS[c][0];
+			STEP_SIZE = WINDOWS[c][1];
+			ALPHA = alpha;
+			File output = windowsOutput(cmd.getOptionValue("output"), WINDOW_SIZE, STEP_SIZE);
+			System.err.println("WINDOW_SIZE " + WINDOW_SIZE + ", STEP_SIZE " + STEP_SIZE + ": writing " + output);
+			
+			// no junctions in this mode, so every chromosome gets an empty index
+			Map<String, WindowPValues> significantWindows = new HashMap<String, WindowPValues>();
+			Map<String, JunctionIndex> junctions = new HashMap<String, JunctionIndex>();
+			Map<String, double[]> junction_pvalues = new HashMap<String, double[]>();
+			Map<String, Map<Integer, Set<Integer>>> junctions_map = new HashMap<String, Map<Integer, Set<Integer>>>();
+			for(String chr : GENOME_SIZES.keySet()) {
+				significantWindows.put(chr, new WindowPValues());
+				junctions_map.put(chr, new HashMap<Integer, Set<Integer>>());
+				junctions.put(chr, new JunctionIndex(junctions_map.get(chr), WINDOW_SIZE));
+				junction_pvalues.put(chr, new double[0]);
+			}
+			
+			fishersTests(threadPool, mergeWindowCounters(sample_file_counters.get(c)), mergeWindowCounters(control_file_counters.get(c)), 
+					null, null, sampleReadCounts, controlReadCounts, significantWindows, junctions, junction_pvalues);
+			
+			// the counts aren't needed anymore once tested
+			sample_file_counters.set(c, null);
+			control_file_counters.set(c, null);
+			
+			pValueAdjustment(threadPool, significantWindows);
+			Map<String, List<Interval>> filteredWindows = filterWindows(threadPool, significantWindows, junctions, 
+					junction_pvalues, junctions_map);
+			
+			splitWindows(filteredWindows);
+			BedWriter out = new BedWriter(output);
+			printFilteredWindows(threadPool, filteredWindows, out);
+			out.close();
+		}
+		
+		System.out.println("MeRIPPeR: Window Counter for " + WINDOWS.length + " window configurations...finished");
+	}
+	
+	/**
+	 * The output file of one --windows configuration: peaks.bed becomes peaks.w50.s25.bed (and
+	 * peaks.bed.gz peaks.w50.s25.bed.gz).
+	 */
+	private static File windowsOutput(String output, int window_size, int step_size) {
+		File file = new File(output);
+		String name = file.getName();
+		String gz = name.endsWith(".gz") ? ".gz" : "";
+		name = name.substring(0, name.length() - gz.length());
+		String suffix = ".w" + window_size + ".s" + step_size;
+		int dot = name.lastIndexOf('.');
+		name = dot > 0 ? name.substring(0, dot) + suffix + name.substring(dot) : name + suffix;
+		
+		return new File(file.getParentFile(), name + gz);
+	}
+	
+	/**
+	 * The counter factory for the window configurations <code>windows</code>, its storage planned
+	 * from the inputs' indexes within MAX_MEMORY before any read is counted.
+	 */
+	private static WindowCountsFactory counterFactory(int[][] windows, String[] sampleFilenames, String[] controlFilenames) 
+			throws IOException {
+		WindowCountsFactory factory = new WindowCountsFactory(GENOME_SIZES, windows, DIFFERENCE_COUNTS);
+		for(String filename : sampleFilenames) {
+			factory.observe(new File(filename));
+		}
+		for(String filename : controlFilenames) {
+			factory.observe(new File(filename));
+		}
+		factory.plan(MAX_MEMORY);
+		
+		RunMetrics.Stage counting = METRICS.stage("count");
+		counting.set("dense_counters", factory.count(WindowCountsFactory.Storage.DENSE));
+		counting.set("sparse_counters", factory.count(WindowCountsFactory.Storage.SPARSE));
+		counting.set("lazy_counters", factory.count(WindowCountsFactory.Storage.LAZY));
+		counting.set("projected_counter_bytes", factory.projectedBytes());
+		return factory;
+	}
+	
+	/**
+	 * Submits the counting tasks for one input file in --windows mode, grouped as in submitReadCounters.
+	 * Each task counts its reads into all configurations, whose fresh counters are appended to
+	 * <code>config_file_counters</code>.
+	 */
+	private static List<Future<Integer>> submitMultiWindowCounters(ExecutorService threadPool, ExecutorService inflaters, 
+			File file, WindowCountsFactory counterFactory, List<List<Map<String, WindowCounts>>> config_file_counters) throws IOException {
+		List<Map<String, WindowCounts>> counters = new ArrayList<Map<String, WindowCounts>>();
+		for(int c = 0; c < WINDOWS.length; c++) {
+			Map<String, WindowCounts> config_counters = new HashMap<String, WindowCounts>();
+			for(String chr : GENOME_SIZES.keySet()) {
+				config_counters.put(chr, counterFactory.create(c, chr));
+			}
+			config_file_counters.get(c).add(config_counters);
+			counters.add(config_counters);
+		}
+		
+		List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+		CountProgress progress = countProgress(file);
+		for(List<String> chrs : countingGroups(file, inflaters, GENOME_SIZES.keySet())) {
+			List<ReadCounter> configs = new ArrayList<ReadCounter>();
+			for(int c = 0; c < WINDOWS.length; c++) {
+				configs.add(new ReadCounter(file, chrs, counters.get(c), WINDOWS[c][0], WINDOWS[c][1]));
 			}
+			ReadCounter counter = new MultiWindowReadCounter(file, chrs, configs);
+			counter.setProgress(progress);
+			futures.add(submitCounter(threadPool, inflaters, counter, taskName(file, chrs)));
 		}
-		reader.close();
+		
+		return futures;
 	}
-
-	private static void addJunctionsFromFile(Map<String, IntervalTree<Double>> junctions,
-			Map<String, Map<Integer, Set<Integer>>>junctions_map,
-			String junctionsFilename, int minimumCoverage) throws FileNotFoundException {
-		Scanner reader = new Scanner(new File(junctionsFilename));
-		while(reader.hasNextLine()) {
-			String[] line = reader.nextLine().split("\t");
-			String chr = line[0];
-			int start = Integer.parseInt(line[1]) - 2;
-			int end = Integer.parseInt(line[2]);
-			int cov = Integer.parseInt(line[6]);
-			
-			Map<Integer, Set<Integer>> chr_map = junctions_map.get(chr);
-			if(cov >= minimumCoverage && chr_map != null) {
-				addJunction(junctions.get(chr), chr_map, start, end);
-			}
-		}
-		reader.close();
+	
+	/**
+	 * Tests every window (and junction flank) of the pooled counts, collecting the retained p-values
+	 * in <code>significantWindows</code> and <code>junction_pvalues</code>.
+	 */
+	@SuppressWarnings("rawtypes")
+	private static void fishersTests(ExecutorService threadPool, Map<String, WindowCounts> sample_counters, 
+			Map<String, WindowCounts> control_counters, Map<String, int[]> junctions_merip_counter, 
+			Map<String, int[]> junctions_control_counter, int sampleReadCounts, int controlReadCounts, 
+			Map<String, WindowPValues> significantWindows, Map<String, JunctionIndex> junctions, 
+			Map<String, double[]> junction_pvalues) throws InterruptedException, ExecutionException {
+		long startTime = System.currentTimeMillis();
+		RunMetrics.Stage fisher = stage("fisher").start();
+		System.err.println("Starting Fishers Exact Tests.");
+		// one p-value cache shared by every chromosome's tasks
+		FisherPValueCache pvalues = new FisherPValueCache(sampleReadCounts, controlReadCounts, PVALUE_CACHE_SIZE, testThreshold());
+		
+		// now submit fishers threads
+		List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+		for(String chr : GENOME_SIZES.keySet()) {
+			futures.add(threadPool.submit(fisher.timed(chr, new FishersTestThread(sample_counters.get(chr), control_counters.get(chr), 
+					sampleReadCounts, controlReadCounts, STEP_SIZE, significantWindows.get(chr), pvalues))));
+			
+			if(junctions.get(chr).size() > 0) {
+				futures.add(threadPool.submit(fisher.timed(chr + " junctions", new FishersTestJunctionThread(junctions_merip_counter.get(chr), 
+						junctions_control_counter.get(chr), sampleReadCounts, controlReadCounts, junction_pvalues.get(chr), pvalues))));
+			}
+		}
+		
+		// now "get" the Futures and cause a wait
+		for(Future future : futures) {
+			future.get();
+		}
+		
+		long endTime = System.currentTimeMillis();
+		fisher.stop();
+		System.err.println("Fishers Exact Test tasks completed in " + ((endTime - startTime) / 1000) + " seconds.");
+		System.err.println(pvalues);
+		
+		long windows = 0, significant = 0, flanks = 0;
+		for(String chr : GENOME_SIZES.keySet()) {
+			windows += sample_counters.get(chr).size();
+			significant += significantWindows.get(chr).size();
+			flanks += junction_pvalues.get(chr).length;
+		}
+		fisher.set("windows", windows);
+		fisher.rate("windows");
+		fisher.set("junction_flanks", flanks);
+		fisher.set("tests", pvalues.hits() + pvalues.misses() + pvalues.skipped());
+		fisher.set("fisher_calls", pvalues.misses());
+		fisher.set("pvalue_cache_hits", pvalues.hits());
+		fisher.set("pvalue_cache_skipped", pvalues.skipped());
+		fisher.set("significant_windows", significant);
+	}
+	
+	/**
+	 * Submits the counting tasks for one input file, counting into a fresh set of counters that is
+	 * appended to <code>file_counters</code> (and <code>junction_file_counters</code> in junctions mode).
+	 * With a BAM index the chromosomes are split into up to NUM_THREADS groups of similar total length,
+	 * each read through its own indexed reader; without one the whole file is scanned sequentially by a
+	 * single task. With <code>inflaters</code> every file is scanned sequentially, its BGZF blocks
+	 * inflated in parallel on that pool, which also works for unindexed and name-sorted BAMs.
+	 * <p>
+	 * With COUNT_CACHE set, a file with cached counts is loaded from the cache by a single task instead.
+	 * The cache still to be written for the file (null if none) is appended to <code>caches_to_write</code>.
+	 */
+	private static List<Future<Integer>> submitReadCounters(ExecutorService threadPool, ExecutorService inflaters, File file, 
+			WindowCountsFactory counterFactory, Map<String, JunctionIndex> junctions, List<Map<String, WindowCounts>> file_counters,
+			List<Map<String, int[]>> junction_file_counters, List<CountCache> caches_to_write) throws IOException {
+		Map<String, WindowCounts> counters = new HashMap<String, WindowCounts>();
+		for(String chr : GENOME_SIZES.keySet()) {
+			counters.put(chr, counterFactory.create(0, chr));
+		}
+		file_counters.add(counters);
+		
+		Map<String, int[]> junction_counters = null;
+		if(JUNCTIONS) {
+			junction_counters = new HashMap<String, int[]>();
+			for(String chr : junctions.keySet()) {
+				junction_counters.put(chr,  new int[junctions.get(chr).size()]);
+			}
+			junction_file_counters.add(junction_counters);
+		}
+		
+		List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+		CountCache cache = COUNT_CACHE == null ? null : new CountCache(COUNT_CACHE, file, WINDOW_SIZE, STEP_SIZE, GENOME_SIZES, junctions);
+		if(cache != null && cache.isValid()) {
+			System.err.println("Loading counts for " + file + " from " + cache.file());
+			futures.add(threadPool.submit(METRICS.stage("count").timed(file.getName() + " (cache)", cache.loader(counters, junction_counters))));
+			METRICS.stage("count").add("cached_files", 1);
+			caches_to_write.add(null);
+			return futures;
+		}
+		caches_to_write.add(cache);
+		
+		CountProgress progress = countProgress(file);
+		for(List<String> chrs : countingGroups(file, inflaters, counters.keySet())) {
+			ReadCounter counter;
+			if(junction_counters != null) {
+				counter = new ReadCounterJunctions(file, chrs, counters, junctions, junction_counters, WINDOW_SIZE, STEP_SIZE);
+			} else {
+				counter = new ReadCounter(file, chrs, counters, WINDOW_SIZE, STEP_SIZE);
+			}
+			counter.setProgress(progress);
+			futures.add(submitCounter(threadPool, inflaters, counter, taskName(file, chrs)));
+		}
+		
+		return futures;
 	}
 	
-	private static void addJunction(IntervalTree<Double> junctions_chr,
-			Map<Integer, Set<Integer>> junctions_map_chr, int start, int end) {
-		Set<Integer> set = junctions_map_chr.get(start);
-		if(set == null) {
-			set = new HashSet<Integer>();
-			junctions_map_chr.put(start, set);
+	/**
+	 * The chromosome groups counted by one task each, a single null group for a sequential scan.
+	 */
+	private static List<List<String>> countingGroups(File file, ExecutorService inflaters, Set<String> counted) throws IOException {
+		List<List<String>> groups = new ArrayList<List<String>>();
+		SamReader reader = ReadCounter.open(file);
+		try {
+			if(inflaters != null) {
+				System.err.println("Counting " + file + " sequentially, inflating on " + INFLATE_THREADS + " threads.");
+				groups.add(null);
+			} else if(reader.hasIndex()) {
+				groups = partitionChromosomes(reader.getFileHeader().getSequenceDictionary(), counted);
+				System.err.println("Counting " + file + " in " + groups.size() + " indexed tasks.");
+			} else {
+				System.err.println("No index found for " + file + ", counting sequentially.");
+				groups.add(null);
+			}
+		} finally {
+			reader.close();
 		}
 		
-		if(!set.contains(end)) {
-			set.add(end);
-			junctions_chr.put(start - WINDOW_SIZE,  start, 1.0);
-			junctions_chr.put(end, end + WINDOW_SIZE - 1,  1.0);
+		return groups;
+	}
+	
+	private static Future<Integer> submitCounter(ExecutorService threadPool, ExecutorService inflaters, ReadCounter counter, 
+			String name) {
+		Callable<Integer> task;
+		if(inflaters != null) {
+			task = new PipelinedReadCounter(counter, BATCH_SIZE, QUEUE_DEPTH, inflaters, 4 * INFLATE_THREADS);
+		} else if(PIPELINE) {
+			// decoding moves to a dedicated thread per task, feeding the pool thread that counts
+			task = new PipelinedReadCounter(counter, BATCH_SIZE, QUEUE_DEPTH);
+		} else {
+			task = counter;
 		}
+		return threadPool.submit(METRICS.stage("count").timed(name, task));
 	}
 	
-	private static void pValueAdjustment(Map<String, Map<Integer, Double>> significantWindows) {
+	/**
+	 * The shared progress of the tasks counting <code>file</code>, logged by PROGRESS. The reads to
+	 * expect come from the BAM index, when there is one.
+	 */
+	private static CountProgress countProgress(File file) throws IOException {
+		long expected = PROGRESS_INTERVAL > 0 ? CountProgress.indexedReads(file, GENOME_SIZES.keySet()) : -1;
+		CountProgress progress = new CountProgress(file, expected);
+		PROGRESS.add(progress);
+		return progress;
+	}
+	
+	/**
+	 * A counting task's name in the metrics: the file and its chromosomes, "*" for a sequential scan.
+	 */
+	private static String taskName(File file, List<String> chrs) {
+		StringBuilder name = new StringBuilder(file.getName()).append(' ');
+		if(chrs == null) {
+			return name.append('*').toString();
+		}
+		for(int i = 0; i < chrs.size(); i++) {
+			name.append(i > 0 ? "," : "").append(chrs.get(i));
+		}
+		return name.toString();
+	}
+	
+	private static void countMetrics(RunMetrics.Stage count, int sampleReadCounts, int controlReadCounts) {
+		count.set("reads_merip", sampleReadCounts);
+		count.set("reads_control", controlReadCounts);
+		count.set("reads", (long) sampleReadCounts + controlReadCounts);
+		count.rate("reads");
+	}
+	
+	/**
+	 * Writes a freshly counted file's counts to its cache. A cache that can't be written only costs
+	 * the next run a recount, so failures are reported but don't stop this one.
+	 */
+	private static void writeCountCache(CountCache cache, int reads, Map<String, WindowCounts> counters, 
+			Map<String, int[]> junction_counters) {
+		if(cache == null) {
+			return;
+		}
+		
+		long startTime = System.currentTimeMillis();
+		try {
+			cache.write(reads, counters, junction_counters);
+			System.err.println("Wrote counts to " + cache.file() + " in " + (System.currentTimeMillis() - startTime) + " ms");
+		} catch(IOException e) {
+			System.err.println("WARNING: could not write count cache " + cache.file() + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Adds every file's window counts into the first file's counters, which become the pooled totals.
+	 */
+	private static Map<String, WindowCounts> mergeWindowCounters(List<Map<String, WindowCounts>> file_counters) {
+		Map<String, WindowCounts> pooled = file_counters.get(0);
+		for(int i = 1; i < file_counters.size(); i++) {
+			for(Map.Entry<String, WindowCounts> entry : file_counters.get(i).entrySet()) {
+				pooled.get(entry.getKey()).add(entry.getValue());
+			}
+		}
+		
+		return pooled;
+	}
+	
+	private static Map<String, int[]> mergeJunctionCounters(List<Map<String, int[]>> file_counters) {
+		if(file_counters.isEmpty()) {
+			return null;
+		}
+		
+		Map<String, int[]> pooled = file_counters.get(0);
+		for(int i = 1; i < file_counters.size(); i++) {
+			for(Map.Entry<String, int[]> chr : file_counters.get(i).entrySet()) {
+				int[] pooled_chr = pooled.get(chr.getKey());
+				for(int id = 0; id < pooled_chr.length; id++) {
+					pooled_chr[id] += chr.getValue()[id];
+				}
+			}
+		}
+		
+		return pooled;
+	}
+	
+	/**
+	 * Longest-first greedy split of the counted chromosomes into at most NUM_THREADS groups.
+	 * A chromosome is never split, so every window counter is written by exactly one task.
+	 */
+	private static List<List<String>> partitionChromosomes(SAMSequenceDictionary dictionary, Set<String> counted) {
+		List<SAMSequenceRecord> sequences = new ArrayList<SAMSequenceRecord>();
+		for(SAMSequenceRecord sequence : dictionary.getSequences()) {
+			if(counted.contains(sequence.getSequenceName())) {
+				sequences.add(sequence);
+			}
+		}
+		Collections.sort(sequences, new Comparator<SAMSequenceRecord>() {
+			@Override
+			public int compare(SAMSequenceRecord o1, SAMSequenceRecord o2) {
+				return Integer.compare(o2.getSequenceLength(), o1.getSequenceLength());
+			}});
+		
+		int ngroups = Math.max(1, Math.min(NUM_THREADS, sequences.size()));
+		List<List<String>> groups = new ArrayList<List<String>>();
+		long[] loads = new long[ngroups];
+		for(int i = 0; i < ngroups; i++) {
+			groups.add(new ArrayList<String>());
+		}
+		
+		for(SAMSequenceRecord sequence : sequences) {
+			int min = 0;
+			for(int i = 1; i < ngroups; i++) {
+				if(loads[i] < loads[min]) {
+					min = i;
+				}
+			}
+			groups.get(min).add(sequence.getSequenceName());
+			loads[min] += sequence.getSequenceLength();
+		}
+		
+		return groups;
+	}
+	
+	private static int sum(List<Future<Integer>> futures) throws InterruptedException, ExecutionException {
+		int sum = 0;
+		for(Future<Integer> future : futures) {
+			sum += future.get();
+		}
+		return sum;
+	}
+	
+	private static void pValueAdjustment(ExecutorService threadPool, final Map<String, WindowPValues> significantWindows) 
+			throws InterruptedException, ExecutionException {
 		
 		long time0 = System.currentTimeMillis();
-
+		RunMetrics.Stage adjust = stage("adjust").start();
+		adjust.set("method", P_ADJUST);
+		
 		// Perform p-value adjustment
 		if(P_ADJUST  != null && !P_ADJUST.equalsIgnoreCase("none")) {
 			long time1 = System.currentTimeMillis();
 			System.err.println("Adjusting p-values using method: " + P_ADJUST);
-			int N = 0;
-			for(Map.Entry<String, Integer> entry : GENOME_SIZES.entrySet()) {
-				N += (int) Math.ceil(entry.getValue() / STEP_SIZE);
-			}
+			int N = numTests();
 			System.err.println("Using N = " + N);
+			adjust.set("n", N);
 			
 			if(P_ADJUST.equalsIgnoreCase("Bonferroni")) {
 				ALPHA /= N;
 			} else if(P_ADJUST.equalsIgnoreCase("BenjaminiHochberg")) {
-				List<Double> pvalues = new ArrayList<Double>();
-				for(String chr : GENOME_SIZES.keySet()) {
-					for(double d : significantWindows.get(chr).values()) {
-						pvalues.add(d);
-					}
+				// the cutoff alpha * k / N never exceeds alpha, so only those p-values can be rejected
+				List<Future<double[]>> futures = new ArrayList<Future<double[]>>();
+				for(final String chr : GENOME_SIZES.keySet()) {
+					futures.add(threadPool.submit(new Callable<double[]>() {
+						@Override
+						public double[] call() {
+							return significantWindows.get(chr).pvaluesAtMost(ALPHA);
+						}}));
 				}
 				
-				Collections.sort(pvalues);
+				List<double[]> chr_pvalues = new ArrayList<double[]>();
+				int size = 0;
+				for(Future<double[]> future : futures) {
+					chr_pvalues.add(future.get());
+					size += chr_pvalues.get(chr_pvalues.size() - 1).length;
+				}
 				
-				int k = 0;
-				while(pvalues.get(k) <= ALPHA * k / N && k < pvalues.size() - 1) {
-					k++;
+				double[] pvalues = new double[size];
+				int offset = 0;
+				for(double[] p : chr_pvalues) {
+					System.arraycopy(p, 0, pvalues, offset, p.length);
+					offset += p.length;
 				}
 				
-				ALPHA = pvalues.get(k - 1);
+				Arrays.parallelSort(pvalues);
+				
+				// step-up: the largest rank k (1-based) with p_(k) <= alpha * k / N rejects ranks 1..k
+				int k = pvalues.length;
+				while(k > 0 && pvalues[k - 1] > ALPHA * k / N) {
+					k--;
+				}
+				
+				System.err.println("Rejecting " + k + " of " + pvalues.length + " candidate windows");
+				adjust.set("candidates", pvalues.length);
+				adjust.set("rejected", k);
+				ALPHA = k > 0 ? pvalues[k - 1] : 0;
 			}
-
+			
 			time1 = System.currentTimeMillis();
 			System.err.println("Adjusting p-values completed in " + ((time1-time0) / 1000) + " seconds.");
 			System.err.println("New alpha = " + ALPHA);
 		}
+		
+		adjust.stop();
+		adjust.set("alpha", ALPHA);
 	}
-
-	private static void printFilteredWindows(ExecutorService threadPool, Map<String, Map<Integer, Double>> significantWindows,
-			Map<String, IntervalTree<Double>> junctions, Map<String, Map<Integer, Set<Integer>>> junctions_map, 
-			PrintStream out) throws InterruptedException, ExecutionException {
+	
+	/**
+	 * Largest p-value that can still pass after adjustment: ALPHA / N for Bonferroni and ALPHA
+	 * otherwise, since the Benjamini-Hochberg cutoff never exceeds ALPHA. Tests may stop as soon as
+	 * a p-value is known to be above it. Without --early-termination every p-value is exact.
+	 */
+	private static double testThreshold() {
+		if(!EARLY_TERMINATION) {
+			return 1.0;
+		}
 		
-		List<String> chrs = new ArrayList<String>(significantWindows.keySet());
-		Collections.sort(chrs);
+		double threshold = ALPHA;
+		if(P_ADJUST != null && P_ADJUST.equalsIgnoreCase("Bonferroni")) {
+			threshold /= numTests();
+		}
 		
+		System.err.println("Stopping Fisher's tests early above p = " + threshold);
+		return threshold;
+	}
+	
+	private static int numTests() {
+		int N = 0;
+		for(Map.Entry<String, Integer> entry : GENOME_SIZES.entrySet()) {
+			N += (int) Math.ceil(entry.getValue() / STEP_SIZE);
+		}
+		return N;
+	}
+	
+	/**
+	 * Streaming counterpart of windowCountsFishers, pValueAdjustment and filterWindows for
+	 * coordinate-sorted inputs. Only the sliding window of pending counts and the passing windows of
+	 * the current chromosome are held in memory. Benjamini-Hochberg needs a first pass to build a
+	 * p-value histogram, so it reads the inputs twice; Bonferroni and none read them once.
+	 */
+	private static Map<String, List<Interval>> streamingWindows(CommandLine cmd) throws IOException {
+		System.out.println("MeRIPPeR: Streaming Window Counter & Fisher's Test...started");
+		long time0 = System.currentTimeMillis();
+		
+		StreamingWindowTester tester = new StreamingWindowTester(files(cmd.getOptionValues("merip")), 
+				files(cmd.getOptionValues("control")), GENOME_SIZES, WINDOW_SIZE, STEP_SIZE, PVALUE_CACHE_SIZE, testThreshold());
+		RunMetrics.Stage counting = METRICS.stage("count").start();
+		tester.countReads();
+		counting.stop();
+		countMetrics(counting, tester.getSampleReadCounts(), tester.getControlReadCounts());
+		long time1 = System.currentTimeMillis();
+		System.err.println("Counting library totals took " + ((time1 - time0) / 1000) + " seconds");
+		
+		// windows are tested within the passes below, so testing time shows under adjust (Benjamini-Hochberg only) and filter
+		RunMetrics.Stage adjust = METRICS.stage("adjust").start();
+		adjust.set("method", P_ADJUST);
+		final int cutoffBin;
+		if(P_ADJUST != null && P_ADJUST.equalsIgnoreCase("BenjaminiHochberg")) {
+			System.err.println("Adjusting p-values using method: " + P_ADJUST);
+			int N = numTests();
+			System.err.println("Using N = " + N);
+			
+			final PValueHistogram histogram = new PValueHistogram();
+			tester.stream(new StreamingWindowTester.Listener() {
+				@Override
+				public void window(String chr, int start, double pvalue) {
+					if(pvalue <= ALPHA) {
+						histogram.add(pvalue);
+					}
+				}
+				
+				@Override
+				public void endChromosome(String chr) {
+				}});
+			
+			cutoffBin = histogram.cutoffBin(ALPHA, N);
+			adjust.set("n", N);
+			adjust.set("candidates", histogram.count());
+			ALPHA = cutoffBin < 0 ? 0 : PValueHistogram.upperEdge(cutoffBin);
+			long time2 = System.currentTimeMillis();
+			System.err.println("P-value histogram of " + histogram.count() + " windows completed in " + ((time2 - time1) / 1000) + " seconds.");
+			System.err.println("New alpha = " + ALPHA);
+		} else {
+			cutoffBin = -1;
+			if(P_ADJUST != null && P_ADJUST.equalsIgnoreCase("Bonferroni")) {
+				System.err.println("Adjusting p-values using method: " + P_ADJUST);
+				int N = numTests();
+				System.err.println("Using N = " + N);
+				adjust.set("n", N);
+				ALPHA /= N;
+				System.err.println("New alpha = " + ALPHA);
+			}
+		}
+		adjust.stop();
+		adjust.set("alpha", ALPHA);
+		
+		final boolean histogramCutoff = P_ADJUST != null && P_ADJUST.equalsIgnoreCase("BenjaminiHochberg");
+		final Map<String, List<Interval>> filteredWindows = new HashMap<String, List<Interval>>();
+		RunMetrics.Stage filter = METRICS.stage("filter").start();
+		tester.stream(new StreamingWindowTester.Listener() {
+			private WindowPValues passing = new WindowPValues();
+			
+			@Override
+			public void window(String chr, int start, double pvalue) {
+				if(histogramCutoff ? PValueHistogram.bin(pvalue) <= cutoffBin : pvalue <= ALPHA) {
+					passing.add(start, pvalue);
+				}
+			}
+			
+			@Override
+			public void endChromosome(String chr) {
+				// merge this chromosome's passing windows right away, then drop them
+				List<Interval> list = new ArrayList<Interval>();
+				new WindowFilterThread(passing, WINDOW_SIZE, GENOME_SIZES.get(chr), MIN_WINDOW_SIZE, list, 1.0).call();
+				filteredWindows.put(chr, list);
+				passing = new WindowPValues();
+			}});
+		
+		filter.stop();
+		
+		FisherPValueCache pvalues = tester.getPValueCache();
+		long peaks = 0;
+		for(List<Interval> chr : filteredWindows.values()) {
+			peaks += chr.size();
+		}
+		filter.set("peaks", peaks);
+		filter.set("fisher_calls", pvalues.misses());
+		filter.set("pvalue_cache_hits", pvalues.hits());
+		filter.set("pvalue_cache_skipped", pvalues.skipped());
+		
+		System.err.println(pvalues);
+		System.err.println("MeRIPPeR: Streaming Window Counter & Fisher's Test...finished in " 
+				+ ((System.currentTimeMillis() - time0) / 1000) + " seconds.");
+		return filteredWindows;
+	}
+	
+	private static File[] files(String[] filenames) {
+		File[] files = new File[filenames.length];
+		for(int i = 0; i < filenames.length; i++) {
+			files[i] = new File(filenames[i]);
+		}
+		return files;
+	}
+	
+	private static Map<String, List<Interval>> filterWindows(ExecutorService threadPool, Map<String, WindowPValues> significantWindows,
+			Map<String, JunctionIndex> junctions, Map<String, double[]> junction_pvalues, 
+			Map<String, Map<Integer, Set<Integer>>> junctions_map) throws InterruptedException, ExecutionException {
+		RunMetrics.Stage filter = stage("filter").start();
 		Map<String, List<Interval>> filteredWindows = new HashMap<String, List<Interval>>();
 		List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
-		for(String chr : chrs) {
+		for(String chr : significantWindows.keySet()) {
 			filteredWindows.put(chr,  new ArrayList<Interval>());
 			if(junctions.get(chr).size() > 0) {
-				futures.add(threadPool.submit(new WindowFilterJunctionsThread(significantWindows.get(chr), 
-						junctions.get(chr), junctions_map.get(chr), WINDOW_SIZE, GENOME_SIZES.get(chr), MIN_WINDOW_SIZE,
-						filteredWindows.get(chr), ALPHA)));
+				futures.add(threadPool.submit(filter.timed(chr, new WindowFilterJunctionsSweepThread(significantWindows.get(chr), 
+						junctions.get(chr), junction_pvalues.get(chr), junctions_map.get(chr), WINDOW_SIZE, GENOME_SIZES.get(chr), MIN_WINDOW_SIZE,
+						filteredWindows.get(chr), ALPHA))));
 			} else {
-				futures.add(threadPool.submit(new WindowFilterThread(significantWindows.get(chr), 
+				futures.add(threadPool.submit(filter.timed(chr, new WindowFilterThread(significantWindows.get(chr), 
 						WINDOW_SIZE, GENOME_SIZES.get(chr), MIN_WINDOW_SIZE,
-						filteredWindows.get(chr), ALPHA)));
+						filteredWindows.get(chr), ALPHA))));
 			}
 		}
 		
@@ -409,21 +1135,75 @@ public class MeRIPPeR {
 		for(Future<Integer> f : futures) {
 			f.get();
 		}
+		filter.stop();
 		
-		for(String chr : chrs) {
-			for(Interval i : filteredWindows.get(chr)) {
-				out.println(chr + "\t" + i.start + "\t" + i.end);
+		long windows = 0, peaks = 0;
+		for(String chr : significantWindows.keySet()) {
+			windows += significantWindows.get(chr).size();
+			peaks += filteredWindows.get(chr).size();
+		}
+		filter.set("windows", windows);
+		filter.set("peaks", peaks);
+		
+		return filteredWindows;
+	}
+	
+	/**
+	 * With --max-window, splits every longer window in place, as WindowSplitter would on the output.
+	 */
+	private static void splitWindows(Map<String, List<Interval>> filteredWindows) {
+		if(MAX_WINDOW_SIZE > 0) {
+			for(Map.Entry<String, List<Interval>> chr : filteredWindows.entrySet()) {
+				chr.setValue(WindowSplitter.split(chr.getValue(), MAX_WINDOW_SIZE));
 			}
 		}
 	}
 	
+	private static void printFilteredWindows(ExecutorService threadPool, Map<String, List<Interval>> filteredWindows, 
+			BedWriter out) throws IOException, InterruptedException, ExecutionException {
+		long startTime = System.currentTimeMillis();
+		RunMetrics.Stage write = stage("write").start();
+		out.write(threadPool, filteredWindows);
+		write.stop();
+		System.err.println("Writing windows took " + (System.currentTimeMillis() - startTime) + " ms");
+		
+		long peaks = 0;
+		for(List<Interval> chr : filteredWindows.values()) {
+			peaks += chr.size();
+		}
+		write.set("peaks", peaks);
+	}
+	
+	/**
+	 * The metrics stage <code>name</code>, one per window configuration with --windows.
+	 */
+	private static RunMetrics.Stage stage(String name) {
+		return METRICS.stage(WINDOWS == null ? name : name + " w" + WINDOW_SIZE + " s" + STEP_SIZE);
+	}
+	
+	/**
+	 * Writes the --metrics-out report. A report that can't be written doesn't fail the run.
+	 */
+	private static void writeMetrics() {
+		if(METRICS_OUT == null) {
+			return;
+		}
+		
+		try {
+			METRICS.write(METRICS_OUT);
+			System.err.println("Wrote metrics to " + METRICS_OUT);
+		} catch(IOException e) {
+			System.err.println("WARNING: could not write metrics " + METRICS_OUT + ": " + e.getMessage());
+		}
+	}
+	
 	@SuppressWarnings("static-access")
 	public static void buildOptions(Options options) {
 		Option sample = OptionBuilder.withArgName("MeRIP-sample-file")
 								  .isRequired(true)
 								  .withLongOpt("merip")
-								  .withDescription("MeRIP sample file")
-								  .hasArg()
+								  .withDescription("MeRIP sample file(s), comma-separated")
+								  .hasArgs()
 								  .withValueSeparator(',')
 								  .create('m');
 		options.addOption(sample);
@@ -431,8 +1211,8 @@ public class MeRIPPeR {
 		Option control = OptionBuilder.withArgName("control-file")
 				  .isRequired(true)
 				  .withLongOpt("control")
-				  .withDescription("control file")
-				  .hasArg()
+				  .withDescription("control file(s), comma-separated")
+				  .hasArgs()
 				  .withValueSeparator(',')
 				  .create('c');
 		options.addOption(control);
@@ -451,7 +1231,7 @@ public class MeRIPPeR {
 				.hasArg()
 				.isRequired()
 				.withLongOpt("output")
-				.withDescription("output file")
+				.withDescription("output file, gzipped if it ends in .gz")
 				.create('o');
 		options.addOption(output);
 		
@@ -531,6 +1311,99 @@ public class MeRIPPeR {
 				  .hasArg()
 				  .create('n');
 		options.addOption(minimum);
-
+		
+		Option maximum = OptionBuilder.withArgName("maximum window size")
+				  .withLongOpt("max-window")
+				  .withDescription("Split windows longer than the maximum into ceil(length / maximum) equal pieces, like WindowSplitter")
+				  .hasArg()
+				  .create();
+		options.addOption(maximum);
+		
+		Option cache = OptionBuilder.withArgName("# pairs")
+				  .withLongOpt("pvalue-cache-size")
+				  .withDescription("Maximum number of high-count (sample, control) pairs kept in the p-value cache")
+				  .hasArg()
+				  .create();
+		options.addOption(cache);
+		
+		Option streaming = OptionBuilder.withLongOpt("streaming")
+				  .withDescription("Single-pass, bounded-memory mode for coordinate-sorted BAMs (no junctions)")
+				  .create();
+		options.addOption(streaming);
+		
+		Option early = OptionBuilder.withLongOpt("early-termination")
+				  .withDescription("Only compute p-values exactly up to the adjusted alpha, skipping windows that cannot reach it")
+				  .create();
+		options.addOption(early);
+		
+		Option difference = OptionBuilder.withLongOpt("difference-counts")
+				  .withDescription("Count each read's window span as +1/-1 deltas, constant cost per read for small step sizes")
+				  .create();
+		options.addOption(difference);
+		
+		Option pipeline = OptionBuilder.withLongOpt("pipeline")
+				  .withDescription("Decode BAM records on a separate thread per counting task, handing them over in batches")
+				  .create();
+		options.addOption(pipeline);
+		
+		Option batchSize = OptionBuilder.withArgName("# reads")
+				  .withLongOpt("batch-size")
+				  .withDescription("Reads per decoded batch in --pipeline mode (default 4096)")
+				  .hasArg()
+				  .create();
+		options.addOption(batchSize);
+		
+		Option queueDepth = OptionBuilder.withArgName("# batches")
+				  .withLongOpt("queue-depth")
+				  .withDescription("Decoded batches queued per counting task in --pipeline mode (default 4)")
+				  .hasArg()
+				  .create();
+		options.addOption(queueDepth);
+		
+		Option inflate = OptionBuilder.withArgName("# threads")
+				  .withLongOpt("inflate-threads")
+				  .withDescription("Inflate BAM blocks on this many extra threads, reading each file sequentially (implies --pipeline)")
+				  .hasArg()
+				  .create();
+		options.addOption(inflate);
+		
+		Option countCache = OptionBuilder.withArgName("directory")
+				  .withLongOpt("count-cache")
+				  .withDescription("Reuse window counts cached in this directory, caching those of uncached input files")
+				  .hasArg()
+				  .create();
+		options.addOption(countCache);
+		
+		Option windows = OptionBuilder.withArgName("window[:step]")
+				  .withLongOpt("windows")
+				  .withDescription("Count the inputs once for several window configurations, comma-separated, writing one output each "
+						  + "(e.g. out.w50.s25.bed)")
+				  .hasArgs()
+				  .withValueSeparator(',')
+				  .create();
+		options.addOption(windows);
+		
+		Option metricsOut = OptionBuilder.withArgName("metrics.json")
+				  .withLongOpt("metrics-out")
+				  .withDescription("Write per-stage timings, counters, task durations and peak heap to this JSON file")
+				  .hasArg()
+				  .create();
+		options.addOption(metricsOut);
+		
+		Option progressInterval = OptionBuilder.withArgName("seconds")
+				  .withLongOpt("progress-interval")
+				  .withDescription("Log read counting progress, throughput and ETA every this many seconds, 0 for never (default 60)")
+				  .hasArg()
+				  .create();
+		options.addOption(progressInterval);
+		
+		Option maxMemory = OptionBuilder.withArgName("bytes")
+				  .withLongOpt("max-memory")
+				  .withDescription("Memory budget for the window counters, e.g. 8G: chromosomes whose indexed reads cover few windows "
+						  + "are counted sparsely until the projected footprint fits (default: sparse only where it halves the footprint)")
+				  .hasArg()
+				  .create();
+		options.addOption(maxMemory);
+		
 	}
 }
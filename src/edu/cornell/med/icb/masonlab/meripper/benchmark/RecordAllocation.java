@@ -0,0 +1,222 @@
+package edu.cornell.med.icb.masonlab.meripper.benchmark;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SamReader;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+
+import edu.cornell.med.icb.masonlab.jenotator.activity.GetChromosomeSizes;
+import edu.cornell.med.icb.masonlab.meripper.util.AnnotationLoader;
+import edu.cornell.med.icb.masonlab.meripper.util.JunctionIndex;
+import edu.cornell.med.icb.masonlab.meripper.util.ReadCounter;
+import edu.cornell.med.icb.masonlab.meripper.util.ReadCounterJunctions;
+import edu.cornell.med.icb.masonlab.meripper.util.WindowCounts;
+
+/**
+ * Measures the heap allocated by the read counters' per-record path. The input's mapped records
+ * are decoded into memory up front, so only the counting itself is measured, repeatedly, on the
+ * benchmark thread (via com.sun.management.ThreadMXBean). Expect 0 bytes/record once warmed up.
+ */
+public class RecordAllocation {
+	public static void main(String[] args) {
+		Options options = new Options();
+		buildOptions(options);
+		CommandLineParser parser = new GnuParser();
+		
+		try {
+			CommandLine cmd = parser.parse(options, args, true);
+			int window_size = Integer.parseInt(cmd.getOptionValue("window-size", "25"));
+			int step_size = Integer.parseInt(cmd.getOptionValue("step-size", Integer.toString(window_size)));
+			int rounds = Integer.parseInt(cmd.getOptionValue("rounds", "20"));
+			boolean deltas = cmd.hasOption("difference-counts");
+			Map<String, Integer> genomeSizes = GetChromosomeSizes.get(cmd.getOptionValue("genome-sizes"));
+			
+			Map<String, WindowCounts> counters = new HashMap<String, WindowCounts>();
+			for(Map.Entry<String, Integer> entry : genomeSizes.entrySet()) {
+				counters.put(entry.getKey(), new WindowCounts(WindowCounts.numWindows(entry.getValue(), step_size), deltas));
+			}
+			
+			File input = new File(cmd.getOptionValue("input"));
+			List<SAMRecord> records = readRecords(input, counters.keySet());
+			System.out.println("Decoded " + records.size() + " mapped records from " + input);
+			
+			Probe probe;
+			if(cmd.hasOption("junctions")) {
+				Map<String, JunctionIndex> junctions = readJunctions(cmd.getOptionValue("junctions"), genomeSizes.keySet(), window_size);
+				Map<String, int[]> junction_counters = new HashMap<String, int[]>();
+				for(Map.Entry<String, JunctionIndex> entry : junctions.entrySet()) {
+					junction_counters.put(entry.getKey(), new int[entry.getValue().size()]);
+				}
+				probe = new JunctionsProbe(input, counters, junctions, junction_counters, window_size, step_size);
+			} else {
+				probe = new WindowsProbe(input, counters, window_size, step_size);
+			}
+			
+			com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+			long thread = Thread.currentThread().getId();
+			for(int round = 1; round <= rounds; round++) {
+				long bytes0 = threads.getThreadAllocatedBytes(thread);
+				long time0 = System.nanoTime();
+				probe.count(records);
+				long time1 = System.nanoTime();
+				long bytes = threads.getThreadAllocatedBytes(thread) - bytes0;
+				
+				System.out.println("Round " + round + ": " + String.format("%.3f", 1.0 * bytes / records.size()) + " bytes/record, "
+						+ String.format("%.1f", records.size() / ((time1 - time0) / 1e9) / 1e6) + "M records/s");
+			}
+		} catch (Throwable t) {
+			t.printStackTrace();
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp("MeRIPPER.RecordAllocation", options, true);
+			System.exit(1);
+		}
+	}
+	
+	private static List<SAMRecord> readRecords(File input, Set<String> chrs) throws Exception {
+		List<SAMRecord> records = new ArrayList<SAMRecord>();
+		SamReader reader = ReadCounter.open(input);
+		try {
+			SAMRecordIterator iterator = reader.iterator();
+			while(iterator.hasNext()) {
+				SAMRecord record = iterator.next();
+				if(!record.getReadUnmappedFlag() && chrs.contains(record.getReferenceName())) {
+					// decodes (and caches) the blocks, so the rounds only measure counting
+					record.getAlignmentBlocks();
+					records.add(record);
+				}
+			}
+			iterator.close();
+		} finally {
+			reader.close();
+		}
+		
+		return records;
+	}
+	
+	/**
+	 * STAR SJ.out.tab junctions, loaded as MeRIPPeR loads them (without a coverage minimum).
+	 */
+	private static Map<String, JunctionIndex> readJunctions(String filename, Set<String> chrs, int window_size) throws Exception {
+		Map<String, Map<Integer, Set<Integer>>> junctions_map = new HashMap<String, Map<Integer, Set<Integer>>>();
+		for(String chr : chrs) {
+			junctions_map.put(chr, new HashMap<Integer, Set<Integer>>());
+		}
+		
+		ExecutorService threadPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try {
+			AnnotationLoader.loadJunctions(threadPool, new File(filename), 0, junctions_map);
+		} finally {
+			threadPool.shutdown();
+		}
+		
+		Map<String, JunctionIndex> junctions = new HashMap<String, JunctionIndex>();
+		for(Map.Entry<String, Map<Integer, Set<Integer>>> entry : junctions_map.entrySet()) {
+			junctions.put(entry.getKey(), new JunctionIndex(entry.getValue(), window_size));
+		}
+		return junctions;
+	}
+	
+	private interface Probe {
+		void count(List<SAMRecord> records);
+	}
+	
+	// the per-record count(SAMRecord, WindowCounts) is protected, so the probes subclass the counters
+	
+	private static class WindowsProbe extends ReadCounter implements Probe {
+		public WindowsProbe(File file, Map<String, WindowCounts> counters, int window_size, int step_size) {
+			super(file, null, counters, window_size, step_size);
+		}
+		
+		@Override
+		public void count(List<SAMRecord> records) {
+			for(int i = 0; i < records.size(); i++) {
+				SAMRecord record = records.get(i);
+				count(record, counters.get(record.getReferenceName()));
+			}
+		}
+	}
+	
+	private static class JunctionsProbe extends ReadCounterJunctions implements Probe {
+		public JunctionsProbe(File file, Map<String, WindowCounts> counters, Map<String, JunctionIndex> junctions,
+				Map<String, int[]> junction_counters, int window_size, int step_size) {
+			super(file, null, counters, junctions, junction_counters, window_size, step_size);
+		}
+		
+		@Override
+		public void count(List<SAMRecord> records) {
+			for(int i = 0; i < records.size(); i++) {
+				SAMRecord record = records.get(i);
+				count(record, counters.get(record.getReferenceName()));
+			}
+		}
+	}
+	
+	@SuppressWarnings("static-access")
+	public static void buildOptions(Options options) {
+		Option input = OptionBuilder.withArgName("BAM file")
+				.hasArg()
+				.isRequired()
+				.withLongOpt("input")
+				.withDescription("reads to count")
+				.create('i');
+		options.addOption(input);
+		
+		Option genome = OptionBuilder.withArgName("genome-sizes")
+				.hasArg()
+				.isRequired()
+				.withLongOpt("genome-sizes")
+				.withDescription("Genome Chromosome Sizes")
+				.create('g');
+		options.addOption(genome);
+		
+		Option windowSize = OptionBuilder.withArgName("window size")
+				.hasArg()
+				.withLongOpt("window-size")
+				.withDescription("Window Size")
+				.create('w');
+		options.addOption(windowSize);
+		
+		Option stepSize = OptionBuilder.withArgName("step size")
+				.hasArg()
+				.withLongOpt("step-size")
+				.withDescription("Window Step Size")
+				.create('s');
+		options.addOption(stepSize);
+		
+		Option junctions = OptionBuilder.withArgName("STAR Junctions file")
+				.hasArg()
+				.withLongOpt("junctions")
+				.withDescription("splice junctions from STAR, measures the junction counter instead")
+				.create('j');
+		options.addOption(junctions);
+		
+		Option rounds = OptionBuilder.withArgName("# rounds")
+				.hasArg()
+				.withLongOpt("rounds")
+				.withDescription("number of measured passes over the records")
+				.create('r');
+		options.addOption(rounds);
+		
+		Option difference = OptionBuilder.withLongOpt("difference-counts")
+				.withDescription("count into difference arrays")
+				.create();
+		options.addOption(difference);
+	}
+}
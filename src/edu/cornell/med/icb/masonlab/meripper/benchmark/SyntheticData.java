@@ -0,0 +1,400 @@
+package edu.cornell.med.icb.masonlab.meripper.benchmark;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+
+/**
+ * Writes a reproducible synthetic MeRIPPeR input set into a directory: coordinate-sorted, indexed
+ * merip.bam and control.bam, genome.sizes, genes.bed (BED12), SJ.out.tab (STAR junctions seen in
+ * the reads) and peaks.bed (the planted peaks, for checking what MeRIPPeR finds).
+ * <p>
+ * Genes of 1-8 exons are placed at random. Reads are either spliced across a random junction
+ * (--spliced-fraction of them), inside a random exon, or (one in four of the rest) anywhere on the
+ * genome. In merip.bam a further --peak-fraction of the reads falls into the planted peaks, 150 bp
+ * regions on random exons. Everything is drawn from --seed, so the same options give the same files.
+ */
+public class SyntheticData {
+	private static final byte[] BASES = {'A', 'C', 'G', 'T'};
+	
+	public static void main(String[] args) {
+		Options options = new Options();
+		buildOptions(options);
+		CommandLineParser parser = new GnuParser();
+		
+		try {
+			CommandLine cmd = parser.parse(options, args, true);
+			File dir = new File(cmd.getOptionValue("output"));
+			int numChrs = Integer.parseInt(cmd.getOptionValue("chromosomes", "4"));
+			int chrSize = Integer.parseInt(cmd.getOptionValue("chr-size", "20000000"));
+			int reads = Integer.parseInt(cmd.getOptionValue("reads", "2000000"));
+			int numGenes = Integer.parseInt(cmd.getOptionValue("genes", "2000"));
+			int numPeaks = Integer.parseInt(cmd.getOptionValue("peaks", "300"));
+			int readLength = Integer.parseInt(cmd.getOptionValue("read-length", "100"));
+			double splicedFraction = Double.parseDouble(cmd.getOptionValue("spliced-fraction", "0.2"));
+			double peakFraction = Double.parseDouble(cmd.getOptionValue("peak-fraction", "0.1"));
+			long seed = Long.parseLong(cmd.getOptionValue("seed", "1"));
+			
+			if(numChrs > 255 || chrSize >= 1 << 28 || readLength < 16 || readLength >= 1 << 10) {
+				throw new IllegalArgumentException("At most 255 chromosomes of less than 2^28 bp and reads of 16-1023 bp");
+			}
+			if(!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IllegalArgumentException("Cannot create " + dir);
+			}
+			Random random = new Random(seed);
+			
+			// chromosomes of decreasing size, like a real karyotype
+			SAMSequenceDictionary dictionary = new SAMSequenceDictionary();
+			PrintStream out = new PrintStream(new File(dir, "genome.sizes"));
+			for(int c = 0; c < numChrs; c++) {
+				String chr = "chr" + (c + 1);
+				int size = (int) (chrSize * (1.0 - 0.5 * c / Math.max(1, numChrs)));
+				dictionary.addSequence(new SAMSequenceRecord(chr, size));
+				out.println(chr + "\t" + size);
+			}
+			out.close();
+			
+			Genome genome = new Genome(dictionary, numGenes, numPeaks, readLength, random);
+			genome.writeGenes(new File(dir, "genes.bed"));
+			genome.writePeaks(new File(dir, "peaks.bed"));
+			
+			long time0 = System.currentTimeMillis();
+			writeBam(new File(dir, "merip.bam"), genome, reads, readLength, splicedFraction, peakFraction, random);
+			writeBam(new File(dir, "control.bam"), genome, reads, readLength, splicedFraction, 0, random);
+			genome.writeJunctions(new File(dir, "SJ.out.tab"));
+			System.out.println("Wrote " + reads + " reads per BAM, " + genome.genes.size() + " genes and " + numPeaks
+					+ " peaks to " + dir + " in " + ((System.currentTimeMillis() - time0) / 1000) + " seconds.");
+		} catch (Throwable t) {
+			t.printStackTrace();
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp("MeRIPPER.SyntheticData", options, true);
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Draws the reads of one BAM, sorts them by position and writes them with an index.
+	 */
+	private static void writeBam(File file, Genome genome, int reads, int readLength, double splicedFraction,
+			double peakFraction, Random random) {
+		// each read packed into a long that sorts by chromosome, then start
+		long[] packed = new long[reads];
+		for(int i = 0; i < reads; i++) {
+			double kind = random.nextDouble();
+			if(kind < peakFraction) {
+				packed[i] = genome.peakRead(random);
+			} else if(kind < peakFraction + (1 - peakFraction) * splicedFraction) {
+				packed[i] = genome.splicedRead(random);
+			} else if(random.nextInt(4) > 0) {
+				packed[i] = genome.exonRead(random);
+			} else {
+				packed[i] = genome.backgroundRead(random);
+			}
+		}
+		// the chromosome is in the top byte, so for a signed sort to order chromosomes 128-255 after
+		// the others the sign bit is flipped while sorting
+		for(int i = 0; i < reads; i++) {
+			packed[i] ^= Long.MIN_VALUE;
+		}
+		Arrays.sort(packed);
+		for(int i = 0; i < reads; i++) {
+			packed[i] ^= Long.MIN_VALUE;
+		}
+		
+		SAMFileHeader header = new SAMFileHeader();
+		header.setSequenceDictionary(genome.dictionary);
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(header, true, file);
+		try {
+			for(int i = 0; i < reads; i++) {
+				int chr = (int) (packed[i] >>> 56);
+				int start = (int) (packed[i] >>> 28 & 0xfffffff);
+				int first = (int) (packed[i] >>> 18 & 0x3ff);
+				int intron = (int) (packed[i] & 0x3ffff);
+				
+				SAMRecord record = new SAMRecord(header);
+				record.setReadName("r" + i);
+				record.setReferenceIndex(chr);
+				record.setAlignmentStart(start + 1);
+				record.setMappingQuality(255);
+				record.setReadNegativeStrandFlag(random.nextBoolean());
+				record.setCigarString(intron > 0 ? first + "M" + intron + "N" + (readLength - first) + "M" : readLength + "M");
+				
+				byte[] bases = new byte[readLength];
+				byte[] qualities = new byte[readLength];
+				long bits = 0;
+				for(int b = 0; b < readLength; b++) {
+					// 32 bases from each random long
+					if((b & 31) == 0) {
+						bits = random.nextLong();
+					}
+					bases[b] = BASES[(int) (bits & 3)];
+					bits >>>= 2;
+					qualities[b] = 30;
+				}
+				record.setReadBases(bases);
+				record.setBaseQualities(qualities);
+				writer.addAlignment(record);
+				
+				if(intron > 0) {
+					genome.junctionSeen(chr, start + first, intron);
+				}
+			}
+		} finally {
+			writer.close();
+		}
+	}
+	
+	/**
+	 * The synthetic chromosomes with their genes, planted peaks and the junctions reads were spliced across.
+	 */
+	private static class Genome {
+		final SAMSequenceDictionary dictionary;
+		final List<Gene> genes = new ArrayList<Gene>();
+		final List<int[]> peaks = new ArrayList<int[]>(); // chromosome, start, end
+		final int readLength;
+		
+		// junction (chromosome, intron start, intron length) -> reads spliced across it
+		// packed like reads, so ordered as unsigned values
+		final Map<Long, Integer> junctions = new TreeMap<Long, Integer>(new Comparator<Long>() {
+			@Override
+			public int compare(Long a, Long b) {
+				return Long.compare(a ^ Long.MIN_VALUE, b ^ Long.MIN_VALUE);
+			}});
+		
+		Genome(SAMSequenceDictionary dictionary, int numGenes, int numPeaks, int readLength, Random random) {
+			this.dictionary = dictionary;
+			this.readLength = readLength;
+			
+			for(int g = 0; g < numGenes; g++) {
+				int chr = random.nextInt(dictionary.size());
+				int chrSize = dictionary.getSequence(chr).getSequenceLength();
+				int exons = 1 + random.nextInt(8);
+				int[] exonStarts = new int[exons];
+				int[] exonLengths = new int[exons];
+				int position = random.nextInt(Math.max(1, chrSize - 60000));
+				for(int e = 0; e < exons; e++) {
+					exonStarts[e] = position;
+					exonLengths[e] = 80 + random.nextInt(320);
+					position += exonLengths[e] + 200 + random.nextInt(4800);
+				}
+				genes.add(new Gene("g" + g, chr, random.nextBoolean() ? '+' : '-', exonStarts, exonLengths));
+			}
+			Collections.sort(genes, new Comparator<Gene>() {
+				@Override
+				public int compare(Gene o1, Gene o2) {
+					return o1.chr != o2.chr ? o1.chr - o2.chr : o1.exonStarts[0] - o2.exonStarts[0];
+				}});
+			
+			for(int p = 0; p < numPeaks; p++) {
+				Gene gene = genes.get(random.nextInt(genes.size()));
+				int e = random.nextInt(gene.exonStarts.length);
+				int center = gene.exonStarts[e] + random.nextInt(gene.exonLengths[e]);
+				int start = Math.max(0, center - 75);
+				peaks.add(new int[] {gene.chr, start, start + 150});
+			}
+		}
+		
+		long peakRead(Random random) {
+			int[] peak = peaks.get(random.nextInt(peaks.size()));
+			return pack(peak[0], peak[1] - readLength / 2 + random.nextInt(peak[2] - peak[1]), 0, 0);
+		}
+		
+		long exonRead(Random random) {
+			Gene gene = genes.get(random.nextInt(genes.size()));
+			int e = random.nextInt(gene.exonStarts.length);
+			return pack(gene.chr, gene.exonStarts[e] + random.nextInt(Math.max(1, gene.exonLengths[e] - readLength)), 0, 0);
+		}
+		
+		long backgroundRead(Random random) {
+			int chr = random.nextInt(dictionary.size());
+			return pack(chr, random.nextInt(dictionary.getSequence(chr).getSequenceLength()), 0, 0);
+		}
+		
+		/**
+		 * A read across a random junction, at least 8 bases on either side; an exon read if the gene
+		 * drawn has only one exon.
+		 */
+		long splicedRead(Random random) {
+			Gene gene = genes.get(random.nextInt(genes.size()));
+			int exons = gene.exonStarts.length;
+			if(exons < 2) {
+				return exonRead(random);
+			}
+			
+			int e = random.nextInt(exons - 1);
+			int end = gene.exonStarts[e] + gene.exonLengths[e];
+			int first = Math.min(8 + random.nextInt(readLength - 15), gene.exonLengths[e]);
+			return pack(gene.chr, end - first, first, gene.exonStarts[e + 1] - end);
+		}
+		
+		/**
+		 * 8 bits of chromosome, 28 of start, 10 of first block length and 18 of intron length (0 if
+		 * the read is not spliced), so that sorting the longs as unsigned values sorts the reads by position.
+		 */
+		private long pack(int chr, int start, int first, int intron) {
+			start = Math.max(0, Math.min(start, dictionary.getSequence(chr).getSequenceLength() - readLength));
+			return (long) chr << 56 | (long) start << 28 | (long) first << 18 | intron;
+		}
+		
+		void junctionSeen(int chr, int intronStart, int intronLength) {
+			long key = (long) chr << 56 | (long) intronStart << 24 | intronLength;
+			Integer count = junctions.get(key);
+			junctions.put(key, count == null ? 1 : count + 1);
+		}
+		
+		void writeGenes(File file) throws Exception {
+			PrintStream out = new PrintStream(file);
+			for(Gene gene : genes) {
+				int start = gene.exonStarts[0];
+				int last = gene.exonStarts.length - 1;
+				int end = gene.exonStarts[last] + gene.exonLengths[last];
+				StringBuilder lengths = new StringBuilder(), offsets = new StringBuilder();
+				for(int e = 0; e <= last; e++) {
+					lengths.append(gene.exonLengths[e]).append(',');
+					offsets.append(gene.exonStarts[e] - start).append(',');
+				}
+				out.println(dictionary.getSequence(gene.chr).getSequenceName() + "\t" + start + "\t" + end + "\t" + gene.name
+						+ "\t0\t" + gene.strand + "\t" + start + "\t" + end + "\t0\t" + (last + 1) + "\t" + lengths + "\t" + offsets);
+			}
+			out.close();
+		}
+		
+		void writePeaks(File file) throws Exception {
+			PrintStream out = new PrintStream(file);
+			for(int[] peak : peaks) {
+				out.println(dictionary.getSequence(peak[0]).getSequenceName() + "\t" + peak[1] + "\t" + peak[2]);
+			}
+			out.close();
+		}
+		
+		/**
+		 * STAR's SJ.out.tab: 1-based first and last intron base, strand, motif, annotation, unique and
+		 * multi-mapping reads, maximum overhang.
+		 */
+		void writeJunctions(File file) throws Exception {
+			PrintStream out = new PrintStream(file);
+			for(Map.Entry<Long, Integer> junction : junctions.entrySet()) {
+				long key = junction.getKey();
+				int chr = (int) (key >>> 56);
+				int intronStart = (int) (key >>> 24 & 0xffffffffL);
+				int intronLength = (int) (key & 0xffffff);
+				out.println(dictionary.getSequence(chr).getSequenceName() + "\t" + (intronStart + 1) + "\t"
+						+ (intronStart + intronLength) + "\t0\t1\t1\t" + junction.getValue() + "\t0\t" + (readLength - 8));
+			}
+			out.close();
+		}
+	}
+	
+	private static class Gene {
+		final String name;
+		final int chr;
+		final char strand;
+		final int[] exonStarts;
+		final int[] exonLengths;
+		
+		Gene(String name, int chr, char strand, int[] exonStarts, int[] exonLengths) {
+			this.name = name;
+			this.chr = chr;
+			this.strand = strand;
+			this.exonStarts = exonStarts;
+			this.exonLengths = exonLengths;
+		}
+	}
+	
+	@SuppressWarnings("static-access")
+	public static void buildOptions(Options options) {
+		Option output = OptionBuilder.withArgName("directory")
+				.hasArg()
+				.isRequired()
+				.withLongOpt("output")
+				.withDescription("directory to write the data set to")
+				.create('o');
+		options.addOption(output);
+		
+		Option chromosomes = OptionBuilder.withArgName("#")
+				.hasArg()
+				.withLongOpt("chromosomes")
+				.withDescription("number of chromosomes (default 4)")
+				.create('c');
+		options.addOption(chromosomes);
+		
+		Option chrSize = OptionBuilder.withArgName("bp")
+				.hasArg()
+				.withLongOpt("chr-size")
+				.withDescription("size of the largest chromosome (default 20000000)")
+				.create('s');
+		options.addOption(chrSize);
+		
+		Option reads = OptionBuilder.withArgName("#")
+				.hasArg()
+				.withLongOpt("reads")
+				.withDescription("reads per BAM (default 2000000)")
+				.create('n');
+		options.addOption(reads);
+		
+		Option genes = OptionBuilder.withArgName("#")
+				.hasArg()
+				.withLongOpt("genes")
+				.withDescription("number of genes (default 2000)")
+				.create('r');
+		options.addOption(genes);
+		
+		Option peaks = OptionBuilder.withArgName("#")
+				.hasArg()
+				.withLongOpt("peaks")
+				.withDescription("number of planted peaks (default 300)")
+				.create('p');
+		options.addOption(peaks);
+		
+		Option readLength = OptionBuilder.withArgName("bp")
+				.hasArg()
+				.withLongOpt("read-length")
+				.withDescription("read length (default 100)")
+				.create('l');
+		options.addOption(readLength);
+		
+		Option spliced = OptionBuilder.withArgName("fraction")
+				.hasArg()
+				.withLongOpt("spliced-fraction")
+				.withDescription("fraction of reads spliced across a junction (default 0.2)")
+				.create();
+		options.addOption(spliced);
+		
+		Option peakFraction = OptionBuilder.withArgName("fraction")
+				.hasArg()
+				.withLongOpt("peak-fraction")
+				.withDescription("fraction of MeRIP reads drawn from the planted peaks (default 0.1)")
+				.create();
+		options.addOption(peakFraction);
+		
+		Option seed = OptionBuilder.withArgName("seed")
+				.hasArg()
+				.withLongOpt("seed")
+				.withDescription("random seed (default 1)")
+				.create();
+		options.addOption(seed);
+	}
+}
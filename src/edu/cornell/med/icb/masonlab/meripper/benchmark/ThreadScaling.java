@@ -0,0 +1,307 @@
+package edu.cornell.med.icb.masonlab.meripper.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+
+import edu.cornell.med.icb.masonlab.meripper.MeRIPPeR;
+
+/**
+ * Runs MeRIPPeR on a data set written by SyntheticData at several thread counts and reports wall
+ * time, peak heap and reads/s for each stage. Every run gets a JVM of its own, started with this
+ * JVM's options and class path, since MeRIPPeR keeps its settings in static fields and a warmed-up
+ * JIT would favour the later runs. Each run writes its --metrics-out report to
+ * metrics-t&lt;threads&gt;.json in the work directory (its output goes to run-t&lt;threads&gt;.log next
+ * to it), and the table is read from there: the report's wall time, heap high-water mark, the
+ * reads of the count stage and each stage's time. A stage a run doesn't have counts as 0.
+ */
+public class ThreadScaling {
+	private static final String[] STAGES = {"count", "fisher", "adjust", "filter", "write"};
+	
+	public static void main(String[] args) {
+		Options options = new Options();
+		buildOptions(options);
+		CommandLineParser parser = new GnuParser();
+		
+		try {
+			CommandLine cmd = parser.parse(options, args, true);
+			File data = new File(cmd.getOptionValue("data"));
+			File work = new File(cmd.getOptionValue("work", data.getPath()));
+			String[] threads = cmd.getOptionValue("threads", "1,2,4,8,16").split(",");
+			
+			List<String> meripper = new ArrayList<String>(Arrays.asList(
+					"-m", new File(data, "merip.bam").getPath(),
+					"-c", new File(data, "control.bam").getPath(),
+					"-g", new File(data, "genome.sizes").getPath()));
+			if(cmd.hasOption("genes")) {
+				meripper.add("-r");
+				meripper.add(new File(data, "genes.bed").getPath());
+			}
+			if(cmd.hasOption("junctions")) {
+				meripper.add("-j");
+				meripper.add(new File(data, "SJ.out.tab").getPath());
+			}
+			// everything from the first option not recognised here goes to MeRIPPeR as is
+			meripper.addAll(cmd.getArgList());
+			
+			System.out.println("threads\twall s\tpeak heap MB\tspeedup\t" + join(STAGES, " s\t") + " s\t" + join(STAGES, " reads/s\t") + " reads/s");
+			double wall1 = 0;
+			for(String t : threads) {
+				int numThreads = Integer.parseInt(t.trim());
+				Map<String, Double> metrics = run(work, numThreads, meripper);
+				
+				double wall = metrics.get("wall") / 1e3;
+				if(wall1 == 0) {
+					wall1 = wall; // speedup is relative to the first thread count
+				}
+				double reads = metrics.get("reads");
+				StringBuilder line = new StringBuilder();
+				line.append(numThreads).append('\t').append(String.format("%.2f", wall));
+				line.append('\t').append(metrics.get("heap").longValue() >> 20);
+				line.append('\t').append(String.format("%.2f", wall1 / wall));
+				for(String stage : STAGES) {
+					line.append('\t').append(String.format("%.3f", metrics.get(stage) / 1e3));
+				}
+				for(String stage : STAGES) {
+					double millis = metrics.get(stage);
+					line.append('\t').append(millis > 0 ? String.format("%.0f", reads / (millis / 1e3)) : "-");
+				}
+				System.out.println(line);
+			}
+		} catch (Throwable t) {
+			t.printStackTrace();
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp("MeRIPPER.ThreadScaling [MeRIPPeR options]", options, true);
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Runs MeRIPPeR with <code>numThreads</code> threads in a new JVM and reads its metrics report:
+	 * "wall" and the stages in milliseconds, "heap" in bytes and "reads".
+	 */
+	private static Map<String, Double> run(File work, int numThreads, List<String> meripper) throws IOException, InterruptedException {
+		File report = new File(work, "metrics-t" + numThreads + ".json");
+		report.delete();
+		
+		List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(MeRIPPeR.class.getName());
+		command.addAll(meripper);
+		command.add("-t");
+		command.add(Integer.toString(numThreads));
+		command.add("-o");
+		command.add(new File(work, "peaks.t" + numThreads + ".bed").getPath());
+		command.add("--metrics-out");
+		command.add(report.getPath());
+		
+		File log = new File(work, "run-t" + numThreads + ".log");
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.redirectErrorStream(true);
+		builder.redirectOutput(log);
+		if(builder.start().waitFor() != 0 || !report.isFile()) {
+			throw new IllegalStateException("MeRIPPeR with " + numThreads + " threads failed, see " + log);
+		}
+		
+		Map<?, ?> json = (Map<?, ?>) new Json(report).parse();
+		Map<String, Double> metrics = new HashMap<String, Double>();
+		metrics.put("wall", number(json.get("wall_ms")));
+		metrics.put("heap", number(((Map<?, ?>) json.get("memory")).get("heap_peak_used_bytes")));
+		metrics.put("reads", 0.0);
+		for(String stage : STAGES) {
+			metrics.put(stage, 0.0);
+		}
+		for(Object value : (List<?>) json.get("stages")) {
+			Map<?, ?> stage = (Map<?, ?>) value;
+			metrics.put((String) stage.get("name"), number(stage.get("ms")));
+			if("count".equals(stage.get("name"))) {
+				metrics.put("reads", number(((Map<?, ?>) stage.get("counters")).get("reads")));
+			}
+		}
+		return metrics;
+	}
+	
+	private static double number(Object value) {
+		return value instanceof Double ? (Double) value : 0;
+	}
+	
+	/**
+	 * Just enough of a JSON reader for RunMetrics' reports: objects become LinkedHashMaps, arrays
+	 * ArrayLists, numbers Doubles, and true, false and null Boolean or null.
+	 */
+	private static class Json {
+		private final String text;
+		private int pos = 0;
+		
+		Json(File file) throws IOException {
+			StringBuilder text = new StringBuilder();
+			Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+			try {
+				char[] buffer = new char[8192];
+				int n;
+				while((n = in.read(buffer)) >= 0) {
+					text.append(buffer, 0, n);
+				}
+			} finally {
+				in.close();
+			}
+			this.text = text.toString();
+		}
+		
+		Object parse() throws IOException {
+			skipSpace();
+			char c = text.charAt(pos);
+			if(c == '{') {
+				Map<String, Object> object = new LinkedHashMap<String, Object>();
+				pos++;
+				skipSpace();
+				if(text.charAt(pos) == '}') {
+					pos++;
+					return object;
+				}
+				do {
+					skipSpace();
+					String key = string();
+					skipSpace();
+					expect(':');
+					object.put(key, parse());
+					skipSpace();
+				} while(text.charAt(pos++) == ',');
+				check(text.charAt(pos - 1) == '}');
+				return object;
+			} else if(c == '[') {
+				List<Object> array = new ArrayList<Object>();
+				pos++;
+				skipSpace();
+				if(text.charAt(pos) == ']') {
+					pos++;
+					return array;
+				}
+				do {
+					array.add(parse());
+					skipSpace();
+				} while(text.charAt(pos++) == ',');
+				check(text.charAt(pos - 1) == ']');
+				return array;
+			} else if(c == '"') {
+				return string();
+			} else if(text.startsWith("true", pos)) {
+				pos += 4;
+				return Boolean.TRUE;
+			} else if(text.startsWith("false", pos)) {
+				pos += 5;
+				return Boolean.FALSE;
+			} else if(text.startsWith("null", pos)) {
+				pos += 4;
+				return null;
+			}
+			
+			int start = pos;
+			while(pos < text.length() && "+-.0123456789eE".indexOf(text.charAt(pos)) >= 0) {
+				pos++;
+			}
+			check(pos > start);
+			return Double.parseDouble(text.substring(start, pos));
+		}
+		
+		private String string() throws IOException {
+			expect('"');
+			StringBuilder s = new StringBuilder();
+			char c;
+			while((c = text.charAt(pos++)) != '"') {
+				if(c == '\\') {
+					c = text.charAt(pos++);
+					if(c == 'u') {
+						c = (char) Integer.parseInt(text.substring(pos, pos + 4), 16);
+						pos += 4;
+					} else if(c == 'n') {
+						c = '\n';
+					} else if(c == 't') {
+						c = '\t';
+					}
+				}
+				s.append(c);
+			}
+			return s.toString();
+		}
+		
+		private void skipSpace() {
+			while(pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+				pos++;
+			}
+		}
+		
+		private void expect(char c) throws IOException {
+			check(text.charAt(pos++) == c);
+		}
+		
+		private void check(boolean ok) throws IOException {
+			if(!ok) {
+				throw new IOException("malformed metrics report at character " + pos);
+			}
+		}
+	}
+	
+	private static String join(String[] values, String separator) {
+		StringBuilder joined = new StringBuilder();
+		for(int i = 0; i < values.length; i++) {
+			joined.append(i > 0 ? separator : "").append(values[i]);
+		}
+		return joined.toString();
+	}
+	
+	@SuppressWarnings("static-access")
+	public static void buildOptions(Options options) {
+		Option data = OptionBuilder.withArgName("directory")
+				.hasArg()
+				.isRequired()
+				.withLongOpt("data")
+				.withDescription("data set written by SyntheticData")
+				.create('d');
+		options.addOption(data);
+		
+		Option work = OptionBuilder.withArgName("directory")
+				.hasArg()
+				.withLongOpt("work")
+				.withDescription("directory for the peaks and logs of each run (default the data directory)")
+				.create('w');
+		options.addOption(work);
+		
+		Option threads = OptionBuilder.withArgName("n,n,...")
+				.hasArg()
+				.withLongOpt("threads")
+				.withDescription("thread counts to run (default 1,2,4,8,16)")
+				.create();
+		options.addOption(threads);
+		
+		Option genes = OptionBuilder.withLongOpt("genes")
+				.withDescription("pass the data set's genes.bed to MeRIPPeR")
+				.create();
+		options.addOption(genes);
+		
+		Option junctions = OptionBuilder.withLongOpt("junctions")
+				.withDescription("pass the data set's SJ.out.tab to MeRIPPeR")
+				.create();
+		options.addOption(junctions);
+	}
+}
@@ -1,8 +1,11 @@
 package edu.cornell.med.icb.masonlab.meripper.peakfinder;
 
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.PrintStream;
+import java.io.FileReader;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -17,9 +20,15 @@ import org.apache.commons.cli.Options;
 import edu.cornell.med.icb.masonlab.jenotator.activity.GetChromosomeSizes;
 import edu.cornell.med.icb.masonlab.jenotator.io.input.Bed6IntervalReader;
 import edu.cornell.med.icb.masonlab.jenotator.model.interval.Bed6Interval;
+import edu.cornell.med.icb.masonlab.meripper.util.BedWriter;
+import edu.cornell.med.icb.masonlab.meripper.util.ExternalDoubleSorter;
 import edu.cornell.med.icb.masonlab.meripper.util.PAdjust;
+import edu.cornell.med.icb.masonlab.meripper.util.RunMetrics;
 
 public class PValueWindowFilter {
+	// p-values per in-memory run of the streaming mode's sort, 128 MB of doubles
+	private static final int DEFAULT_RUN_SIZE = 1 << 24;
+	
 	public static void main(String[] args) {
 		Options options = new Options();
 		buildOptions(options);
@@ -48,15 +57,40 @@ public class PValueWindowFilter {
 				window_size = Integer.parseInt(cmd.getOptionValue("window-size"));
 			}
 			
+			RunMetrics metrics = new RunMetrics("PValueWindowFilter");
+			if(cmd.hasOption("metrics-out")) {
+				metrics.sampleHeap();
+			}
+			metrics.parameter("input", inputFilename);
+			metrics.parameter("window_size", window_size);
+			metrics.parameter("alpha", alpha);
+			metrics.parameter("p_adjust", pAdjust);
+			metrics.parameter("mode", cmd.hasOption("streaming") ? "streaming" : "batch");
+			
+			if(cmd.hasOption("streaming")) {
+				int runSize = DEFAULT_RUN_SIZE;
+				if(cmd.hasOption("run-size")) {
+					runSize = Integer.parseInt(cmd.getOptionValue("run-size"));
+				}
+				
+				streamingFilter(inputFilename, outputFilename, pAdjust, alpha, numTests(sizes, window_size), runSize, metrics);
+				writeMetrics(cmd, metrics);
+				return;
+			}
+			
 			Bed6IntervalReader reader = new Bed6IntervalReader(inputFilename);
-			PrintStream out = new PrintStream(new File(outputFilename));
+			BedWriter out = new BedWriter(new File(outputFilename));
 			List<Bed6Interval> windowsList = new ArrayList<Bed6Interval>();
 			
 			System.err.println("Reading in windows from file: " + inputFilename);
 			long time0s = System.currentTimeMillis();
+			RunMetrics.Stage read = metrics.stage("read").start();
 			while(reader.hasNext()) {
 				windowsList.add(reader.next());
 			}
+			read.stop();
+			read.set("windows", windowsList.size());
+			read.rate("windows");
 			long time0f = System.currentTimeMillis();
 			System.err.println("Reading of windows completed in: " + ((time0f-time0s)/1000) + " seconds.");
 			Bed6Interval[] windows = (Bed6Interval[]) windowsList.toArray(new Bed6Interval[1]);
@@ -65,12 +99,13 @@ public class PValueWindowFilter {
 			if(pAdjust != null && !pAdjust.equals("none")) {
 				long time1 = System.currentTimeMillis();
 				System.err.println("Adjusting p-values using method: " + pAdjust);
-				int N = 0;
-				for(Map.Entry<String, Integer> entry : sizes.entrySet()) {
-					N += (int) Math.ceil(entry.getValue() / window_size);
-				}
+				int N = numTests(sizes, window_size);
 				System.err.println("Using N = " + N);
+				RunMetrics.Stage adjust = metrics.stage("adjust").start();
 				PAdjust.adjust(pAdjust, alpha, windows, N);
+				adjust.stop();
+				adjust.set("method", pAdjust);
+				adjust.set("n", N);
 				long time2 = System.currentTimeMillis();
 
 				time1 = System.currentTimeMillis();
@@ -82,17 +117,22 @@ public class PValueWindowFilter {
 			
 			System.err.println("Printing out significant windows to file: " + outputFilename);
 			long time1 = System.currentTimeMillis();
+			RunMetrics.Stage filter = metrics.stage("filter").start();
 			for(Bed6Interval window : windows) {
 				if(window.getScore() <= alpha) {
-					out.println(window);
+					out.writeLine(window.toString());
 					counter++;
 				}
 				counterA++;
 			}
 			long time2 = System.currentTimeMillis();
 			out.close();
+			filter.stop();
+			filter.set("windows", counterA);
+			filter.set("significant_windows", counter);
 			System.err.println("Printing of significant windows completed in " + ((time2-time1)/1000) + " seconds.");
 			System.err.println(counter + " / " + counterA + " windows significant.");
+			writeMetrics(cmd, metrics);
 		} catch (Throwable t) {
 			t.printStackTrace();
 			HelpFormatter formatter = new HelpFormatter();
@@ -101,6 +141,193 @@ public class PValueWindowFilter {
 		}
 	}
 	
+	private static void writeMetrics(CommandLine cmd, RunMetrics metrics) throws IOException {
+		if(cmd.hasOption("metrics-out")) {
+			metrics.write(new File(cmd.getOptionValue("metrics-out")));
+		}
+	}
+	
+	private static int numTests(Map<String, Integer> sizes, int window_size) {
+		int N = 0;
+		for(Map.Entry<String, Integer> entry : sizes.entrySet()) {
+			N += (int) Math.ceil(entry.getValue() / window_size);
+		}
+		return N;
+	}
+	
+	/**
+	 * Bounded-memory counterpart of main's filter for window files too large to load: the file is
+	 * streamed twice instead of being held as Bed6Intervals. A first pass, for Benjamini-Hochberg only,
+	 * sorts the p-values that may pass in an ExternalDoubleSorter to learn their ranks; the second pass
+	 * writes the passing lines.
+	 * <p>
+	 * The windows passing and their adjusted scores are those of PAdjust, ties ranked in input order
+	 * like its stable sort does. Lines are written as read, in input order rather than re-sorted, with
+	 * the score column replaced by the adjusted p-value.
+	 */
+	private static void streamingFilter(String inputFilename, String outputFilename, String pAdjust, double alpha, 
+			int N, int runSize, RunMetrics metrics) throws IOException {
+		boolean adjust = pAdjust != null && !pAdjust.equals("none");
+		boolean bh = adjust && pAdjust.equalsIgnoreCase("BenjaminiHochberg");
+		if(adjust && !bh && !pAdjust.equalsIgnoreCase("Bonferroni")) {
+			throw new IllegalArgumentException("P-value adjustment method '" + pAdjust + "' not found.");
+		}
+		
+		// Benjamini-Hochberg: the distinct p-values that pass for some of their ties, ascending, and the
+		// number of p-values smaller than each
+		double[] values = new double[0];
+		long[] ranks = new long[0];
+		int distinct = 0;
+		if(bh) {
+			System.err.println("Ranking p-values from file: " + inputFilename + " (N = " + N + ")");
+			long time0 = System.currentTimeMillis();
+			RunMetrics.Stage ranking = metrics.stage("adjust").start();
+			
+			// the rank of a p-value is at most the number of windows n, so one above alpha * n / N can't pass;
+			// n <= N is the usual case, otherwise the candidates are collected again with the right bound
+			ExternalDoubleSorter candidates = new ExternalDoubleSorter(runSize);
+			long n = collectCandidates(inputFilename, alpha, candidates);
+			if(n > N) {
+				candidates.close();
+				candidates = new ExternalDoubleSorter(runSize);
+				collectCandidates(inputFilename, alpha * n / N, candidates);
+			}
+			
+			try {
+				values = new double[1024];
+				ranks = new long[1024];
+				ExternalDoubleSorter.Cursor sorted = candidates.sorted();
+				long rank = 0;
+				boolean more = sorted.next();
+				while(more) {
+					double value = sorted.value();
+					long first = rank;
+					do {
+						rank++;
+						more = sorted.next();
+					} while(more && Double.compare(sorted.value(), value) == 0);
+					
+					// the last tie has the smallest adjusted score
+					if(1.0d * N * value / rank <= alpha) {
+						if(distinct == values.length) {
+							values = Arrays.copyOf(values, 2 * distinct);
+							ranks = Arrays.copyOf(ranks, 2 * distinct);
+						}
+						values[distinct] = value;
+						ranks[distinct] = first;
+						distinct++;
+					}
+				}
+				
+				System.err.println("Ranked " + candidates.size() + " of " + n + " p-values (" + candidates.spilledRuns() 
+						+ " runs spilled to disk) in " + ((System.currentTimeMillis() - time0) / 1000) + " seconds.");
+				ranking.stop();
+				ranking.set("method", pAdjust);
+				ranking.set("n", N);
+				ranking.set("windows", n);
+				ranking.set("candidates", candidates.size());
+				ranking.set("spilled_runs", candidates.spilledRuns());
+			} finally {
+				candidates.close();
+			}
+		}
+		
+		System.err.println("Printing out significant windows to file: " + outputFilename);
+		long time1 = System.currentTimeMillis();
+		RunMetrics.Stage filter = metrics.stage("filter").start();
+		long[] ties = new long[distinct];
+		long counter = 0, counterA = 0;
+		BufferedReader in = new BufferedReader(new FileReader(inputFilename), 1 << 20);
+		BedWriter out = new BedWriter(new File(outputFilename));
+		try {
+			String line;
+			while((line = in.readLine()) != null) {
+				int scoreStart = scoreStart(line);
+				if(scoreStart < 0) {
+					continue;
+				}
+				int scoreEnd = line.indexOf('\t', scoreStart);
+				scoreEnd = scoreEnd < 0 ? line.length() : scoreEnd;
+				double pvalue = Double.parseDouble(line.substring(scoreStart, scoreEnd));
+				counterA++;
+				
+				double score = pvalue;
+				if(bh) {
+					int d = Arrays.binarySearch(values, 0, distinct, pvalue);
+					if(d < 0) {
+						continue;
+					}
+					score = 1.0d * N * pvalue / (ranks[d] + ++ties[d]);
+				} else if(adjust) {
+					score = pvalue / N;
+				}
+				
+				if(score <= alpha) {
+					out.writeLine(adjust ? line.substring(0, scoreStart) + score + line.substring(scoreEnd) : line);
+					counter++;
+				}
+			}
+		} finally {
+			in.close();
+			out.close();
+		}
+		
+		long time2 = System.currentTimeMillis();
+		filter.stop();
+		filter.set("windows", counterA);
+		filter.set("significant_windows", counter);
+		filter.rate("windows");
+		System.err.println("Printing of significant windows completed in " + ((time2-time1)/1000) + " seconds.");
+		System.err.println(counter + " / " + counterA + " windows significant.");
+	}
+	
+	/**
+	 * Reads every window's p-value, adding those at most <code>bound</code> to <code>candidates</code>.
+	 * Returns the number of windows.
+	 */
+	private static long collectCandidates(String inputFilename, double bound, ExternalDoubleSorter candidates) throws IOException {
+		long windows = 0;
+		BufferedReader in = new BufferedReader(new FileReader(inputFilename), 1 << 20);
+		try {
+			String line;
+			while((line = in.readLine()) != null) {
+				int scoreStart = scoreStart(line);
+				if(scoreStart < 0) {
+					continue;
+				}
+				int scoreEnd = line.indexOf('\t', scoreStart);
+				double pvalue = Double.parseDouble(scoreEnd < 0 ? line.substring(scoreStart) : line.substring(scoreStart, scoreEnd));
+				windows++;
+				
+				if(pvalue <= bound) {
+					candidates.add(pvalue);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		
+		return windows;
+	}
+	
+	/**
+	 * Offset of the score (5th) column of a BED line, -1 for header, comment and blank lines.
+	 */
+	private static int scoreStart(String line) {
+		if(line.isEmpty() || line.startsWith("#") || line.startsWith("track") || line.startsWith("browser")) {
+			return -1;
+		}
+		
+		int tab = -1;
+		for(int column = 0; column < 4; column++) {
+			tab = line.indexOf('\t', tab + 1);
+			if(tab < 0) {
+				throw new IllegalArgumentException("Not a BED6 line: " + line);
+			}
+		}
+		return tab + 1;
+	}
+	
 	@SuppressWarnings("static-access")
 	public static void buildOptions(Options options) {
 		Option input = OptionBuilder.withArgName("input")
@@ -114,7 +341,7 @@ public class PValueWindowFilter {
 		Option output = OptionBuilder.withArgName("output")
 				  .isRequired(true)
 				  .withLongOpt("output")
-				  .withDescription("output filename")
+				  .withDescription("output filename, gzipped if it ends in .gz")
 				  .hasArg()
 				  .create('o');
 		options.addOption(output);
@@ -148,5 +375,25 @@ public class PValueWindowFilter {
 				.withDescription("Window Size")
 				.create('w');
 		options.addOption(windowSize);
+		
+		Option streaming = OptionBuilder.withLongOpt("streaming")
+				.withDescription("Filter in bounded memory, streaming the input twice (output in input order)")
+				.create();
+		options.addOption(streaming);
+		
+		Option runSize = OptionBuilder.withArgName("# p-values")
+				.hasArg()
+				.withLongOpt("run-size")
+				.withDescription("P-values sorted in memory before spilling a run to disk in --streaming mode (default " 
+						+ DEFAULT_RUN_SIZE + ")")
+				.create();
+		options.addOption(runSize);
+		
+		Option metricsOut = OptionBuilder.withArgName("metrics.json")
+				.hasArg()
+				.withLongOpt("metrics-out")
+				.withDescription("Write per-stage timings and counters to this JSON file")
+				.create();
+		options.addOption(metricsOut);
 	}
 }
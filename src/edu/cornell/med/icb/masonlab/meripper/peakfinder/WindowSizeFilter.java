@@ -1,6 +1,7 @@
 package edu.cornell.med.icb.masonlab.meripper.peakfinder;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
 
 import org.apache.commons.cli.CommandLine;
@@ -13,6 +14,7 @@ import org.apache.commons.cli.Options;
 
 import edu.cornell.med.icb.masonlab.jenotator.io.input.Bed3IntervalReader;
 import edu.cornell.med.icb.masonlab.jenotator.model.interval.Bed3Interval;
+import edu.cornell.med.icb.masonlab.meripper.util.RunMetrics;
 
 public class WindowSizeFilter {
 	public static void main(String[] args) {
@@ -33,6 +35,14 @@ public class WindowSizeFilter {
 				min = Integer.parseInt(cmd.getOptionValue("min"));
 			}
 			
+			RunMetrics metrics = new RunMetrics("WindowSizeFilter");
+			metrics.parameter("input", inputFilename);
+			metrics.parameter("min", min);
+			if(cmd.hasOption("metrics-out")) {
+				metrics.sampleHeap();
+			}
+			
+			RunMetrics.Stage filter = metrics.stage("filter").start();
 			Bed3IntervalReader reader = new Bed3IntervalReader(inputFilename);
 			PrintStream out = new PrintStream(new File(outputFilename));
 			
@@ -49,6 +59,13 @@ public class WindowSizeFilter {
 				}
 				countA++;
 			}
+			out.close();
+			filter.stop();
+			filter.set("windows", countA);
+			filter.set("passed", countF);
+			filter.rate("windows");
+			writeMetrics(cmd, metrics);
+			
 			long time1 = System.currentTimeMillis();
 			System.out.println("Reading in windows completed in " + ((time1-time0) / 1000) + " seconds.");
 			System.out.println(countF + "/" + countA + " windows passed minimum threshold.");
@@ -60,6 +77,12 @@ public class WindowSizeFilter {
 		}
 	}
 	
+	private static void writeMetrics(CommandLine cmd, RunMetrics metrics) throws IOException {
+		if(cmd.hasOption("metrics-out")) {
+			metrics.write(new File(cmd.getOptionValue("metrics-out")));
+		}
+	}
+	
 	@SuppressWarnings("static-access")
 	public static void buildOptions(Options options) {
 		Option input = OptionBuilder.withArgName("input")
@@ -84,5 +107,12 @@ public class WindowSizeFilter {
 				  .hasArg()
 				  .create('s');
 		options.addOption(min);
+		
+		Option metricsOut = OptionBuilder.withArgName("metrics.json")
+				.hasArg()
+				.withLongOpt("metrics-out")
+				.withDescription("Write timings and counters to this JSON file")
+				.create();
+		options.addOption(metricsOut);
 	}
 }
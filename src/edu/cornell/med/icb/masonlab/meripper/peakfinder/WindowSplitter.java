@@ -1,7 +1,10 @@
 package edu.cornell.med.icb.masonlab.meripper.peakfinder;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -13,6 +16,8 @@ import org.apache.commons.cli.Options;
 
 import edu.cornell.med.icb.masonlab.jenotator.io.input.Bed3IntervalReader;
 import edu.cornell.med.icb.masonlab.jenotator.model.interval.Bed3Interval;
+import edu.cornell.med.icb.masonlab.meripper.util.Interval;
+import edu.cornell.med.icb.masonlab.meripper.util.RunMetrics;
 
 public class WindowSplitter {
 	public static void main(String[] args) {
@@ -33,6 +38,14 @@ public class WindowSplitter {
 				max = Integer.parseInt(cmd.getOptionValue("max"));
 			}
 			
+			RunMetrics metrics = new RunMetrics("WindowSplitter");
+			metrics.parameter("input", inputFilename);
+			metrics.parameter("max", max);
+			if(cmd.hasOption("metrics-out")) {
+				metrics.sampleHeap();
+			}
+			
+			RunMetrics.Stage split = metrics.stage("split").start();
 			Bed3IntervalReader reader = new Bed3IntervalReader(inputFilename);
 			PrintStream out = new PrintStream(new File(outputFilename));
 			
@@ -41,18 +54,15 @@ public class WindowSplitter {
 			System.out.println("Outputting split windows to file: " + outputFilename);
 			
 			int countA = 0, countFS = 0;
+			List<Interval> pieces = new ArrayList<Interval>();
 			while(reader.hasNext()) {
 				Bed3Interval interval = reader.next();
 				
 				if(interval.getLength() > max) {
-					int s = interval.getStart();
-					int e = interval.getEnd();
-					int l = interval.getLength();
-					int N = (int) Math.ceil(1.0 * l / max);
-					int incr = (int) Math.ceil(1.0 * l / N);
-					for(long i = s; i < e; i += incr) {
-						out.println(interval.getChromosome() + "\t" + i + "\t" +
-								Math.min(i+incr, e));
+					pieces.clear();
+					split(interval.getStart(), interval.getEnd(), max, pieces);
+					for(Interval piece : pieces) {
+						out.println(interval.getChromosome() + "\t" + piece.start + "\t" + piece.end);
 						countFS++;
 					}
 				} else {
@@ -61,6 +71,13 @@ public class WindowSplitter {
 				}
 				countA++;
 			}
+			out.close();
+			split.stop();
+			split.set("windows", countA);
+			split.set("split_windows", countFS);
+			split.rate("windows");
+			writeMetrics(cmd, metrics);
+			
 			long time1 = System.currentTimeMillis();
 			System.out.println("Reading in windows completed in " + ((time1-time0) / 1000) + " seconds.");
 			System.out.println(countA + " windows split into " + countFS + " windows.");
@@ -72,6 +89,42 @@ public class WindowSplitter {
 		}
 	}
 	
+	/**
+	 * Splits the windows longer than <code>max</code> like main does (see below); shorter windows
+	 * are kept as they are.
+	 */
+	public static List<Interval> split(List<Interval> windows, int max) {
+		List<Interval> split = new ArrayList<Interval>(windows.size());
+		for(Interval window : windows) {
+			if(window.end - window.start > max) {
+				split(window.start, window.end, max, split);
+			} else {
+				split.add(window);
+			}
+		}
+		
+		return split;
+	}
+	
+	/**
+	 * Adds [start, end) to <code>pieces</code> split into ceil(length / max) pieces of equal length,
+	 * the last one possibly shorter.
+	 */
+	private static void split(int start, int end, int max, List<Interval> pieces) {
+		int l = end - start;
+		int N = (int) Math.ceil(1.0 * l / max);
+		int incr = (int) Math.ceil(1.0 * l / N);
+		for(long i = start; i < end; i += incr) {
+			pieces.add(new Interval((int) i, (int) Math.min(i + incr, end)));
+		}
+	}
+	
+	private static void writeMetrics(CommandLine cmd, RunMetrics metrics) throws IOException {
+		if(cmd.hasOption("metrics-out")) {
+			metrics.write(new File(cmd.getOptionValue("metrics-out")));
+		}
+	}
+	
 	@SuppressWarnings("static-access")
 	public static void buildOptions(Options options) {
 		Option input = OptionBuilder.withArgName("input")
@@ -96,5 +149,12 @@ public class WindowSplitter {
 				  .hasArg()
 				  .create('l');
 		options.addOption(max);
+		
+		Option metricsOut = OptionBuilder.withArgName("metrics.json")
+				.hasArg()
+				.withLongOpt("metrics-out")
+				.withDescription("Write timings and counters to this JSON file")
+				.create();
+		options.addOption(metricsOut);
 	}
 }
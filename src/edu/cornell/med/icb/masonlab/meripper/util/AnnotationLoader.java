@@ -0,0 +1,406 @@
+package edu.cornell.med.icb.masonlab.meripper.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Loads splice junctions from STAR SJ.out.tab or BED12 gene files into the per-chromosome
+ * junction maps. The file is cut into chunks of about CHUNK_SIZE bytes at line boundaries and each
+ * chunk is memory-mapped and parsed on the thread pool straight from the bytes, into packed
+ * (start, end) arrays per chromosome; the chromosome name is only decoded when it changes from one
+ * line to the next. Once every chunk is parsed each chromosome's junctions are sorted, deduplicated
+ * and added to its map in one pass, also on the pool.
+ * <p>
+ * Junctions are the same as MeRIPPeR has always read them: (start - 2, end) of SJ.out.tab lines with
+ * at least the minimum unique coverage (column 7), and (end of exon i - 1, start of exon i + 1) of
+ * BED12 lines. Only chromosomes already in the map are loaded, and blank lines are skipped.
+ */
+public class AnnotationLoader {
+	// bytes of the file parsed by one task; each chunk is mapped on its own
+	public static final int CHUNK_SIZE = 4 << 20;
+	
+	private static final int GENES = 0, JUNCTIONS = 1;
+	
+	/**
+	 * Adds the introns of the BED12 <code>file</code>'s genes to <code>junctions_map</code>, returning
+	 * the number of introns read.
+	 */
+	public static int loadGenes(ExecutorService threadPool, File file, Map<String, Map<Integer, Set<Integer>>> junctions_map)
+			throws IOException, InterruptedException, ExecutionException {
+		return load(threadPool, file, GENES, 0, junctions_map);
+	}
+	
+	/**
+	 * Adds the junctions of the SJ.out.tab <code>file</code> with at least <code>minimumCoverage</code>
+	 * uniquely mapped reads to <code>junctions_map</code>, returning the number of junctions read.
+	 */
+	public static int loadJunctions(ExecutorService threadPool, File file, int minimumCoverage,
+			Map<String, Map<Integer, Set<Integer>>> junctions_map) throws IOException, InterruptedException, ExecutionException {
+		return load(threadPool, file, JUNCTIONS, minimumCoverage, junctions_map);
+	}
+	
+	private static int load(ExecutorService threadPool, File file, int format, int minimumCoverage,
+			final Map<String, Map<Integer, Set<Integer>>> junctions_map) throws IOException, InterruptedException, ExecutionException {
+		long startTime = System.currentTimeMillis();
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+		
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			for(long from = 0; from < size; ) {
+				long to = lineEnd(channel, Math.min(size, from + CHUNK_SIZE), size);
+				Chunk chunk = new Chunk(file, channel, from, to, format, minimumCoverage, junctions_map);
+				chunks.add(chunk);
+				futures.add(threadPool.submit(chunk));
+				from = to;
+			}
+			
+			// the chunks map the file through the channel, so it stays open until they are done
+			for(Future<Integer> future : futures) {
+				future.get();
+			}
+		} finally {
+			in.close();
+		}
+		
+		// gather each chromosome's junctions across the chunks
+		Map<String, List<Packed>> chrs = new HashMap<String, List<Packed>>();
+		int read = 0;
+		for(Chunk chunk : chunks) {
+			for(Map.Entry<String, Packed> chr : chunk.junctions.entrySet()) {
+				List<Packed> parts = chrs.get(chr.getKey());
+				if(parts == null) {
+					parts = new ArrayList<Packed>();
+					chrs.put(chr.getKey(), parts);
+				}
+				parts.add(chr.getValue());
+				read += chr.getValue().size;
+			}
+		}
+		
+		futures.clear();
+		for(final Map.Entry<String, List<Packed>> chr : chrs.entrySet()) {
+			futures.add(threadPool.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					return addAll(junctions_map.get(chr.getKey()), chr.getValue());
+				}}));
+		}
+		int distinct = 0;
+		for(Future<Integer> future : futures) {
+			distinct += future.get();
+		}
+		
+		System.err.println("Loaded " + read + " junctions (" + distinct + " distinct) on " + chrs.size() + " chromosomes from "
+				+ file + " in " + (System.currentTimeMillis() - startTime) + " ms (" + chunks.size() + " chunks)");
+		return read;
+	}
+	
+	/**
+	 * The position just past the end of the line running through <code>position</code> - 1, so that a
+	 * chunk ending there ends with a whole line.
+	 */
+	private static long lineEnd(FileChannel channel, long position, long size) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		for(long p = position - 1; p < size; ) {
+			buffer.clear();
+			int n = channel.read(buffer, p);
+			if(n <= 0) {
+				break;
+			}
+			for(int i = 0; i < n; i++) {
+				if(buffer.get(i) == '\n') {
+					return p + i + 1;
+				}
+			}
+			p += n;
+		}
+		return size;
+	}
+	
+	/**
+	 * Sorts and deduplicates the packed junctions and adds them to <code>chr_map</code>, returning
+	 * how many distinct junctions there were.
+	 */
+	private static int addAll(Map<Integer, Set<Integer>> chr_map, List<Packed> parts) {
+		int n = 0;
+		for(Packed part : parts) {
+			n += part.size;
+		}
+		long[] junctions = new long[n];
+		n = 0;
+		for(Packed part : parts) {
+			System.arraycopy(part.junctions, 0, junctions, n, part.size);
+			n += part.size;
+		}
+		Arrays.sort(junctions);
+		
+		int distinct = 0;
+		Set<Integer> set = null;
+		int setStart = 0;
+		for(int i = 0; i < n; i++) {
+			if(i > 0 && junctions[i] == junctions[i - 1]) {
+				continue;
+			}
+			distinct++;
+			
+			int start = (int) (junctions[i] >> 32);
+			int end = (int) ((junctions[i] & 0xffffffffL) + Integer.MIN_VALUE);
+			if(set == null || start != setStart) {
+				set = chr_map.get(start);
+				if(set == null) {
+					set = new HashSet<Integer>();
+					chr_map.put(start, set);
+				}
+				setStart = start;
+			}
+			set.add(end);
+		}
+		return distinct;
+	}
+	
+	/**
+	 * A growing array of junctions (start, end), packed so that signed long order is (start, end) order.
+	 */
+	private static class Packed {
+		long[] junctions = new long[64];
+		int size = 0;
+		
+		void add(int start, int end) {
+			if(size == junctions.length) {
+				junctions = Arrays.copyOf(junctions, 2 * size);
+			}
+			junctions[size++] = ((long) start << 32) + ((long) end - Integer.MIN_VALUE);
+		}
+	}
+	
+	/**
+	 * Parses the lines in [from, to) of the file into per-chromosome packed junctions.
+	 */
+	private static class Chunk implements Callable<Integer> {
+		// fields used: 7 of SJ.out.tab, 12 of BED12
+		private static final int FIELDS = 12;
+		
+		private final File file;
+		private final FileChannel channel;
+		private final long from;
+		private final long to;
+		private final int format;
+		private final int minimumCoverage;
+		private final Map<String, Map<Integer, Set<Integer>>> junctions_map;
+		private final Map<String, Packed> junctions = new HashMap<String, Packed>();
+		
+		private MappedByteBuffer data;
+		private final int[] fieldStarts = new int[FIELDS];
+		private final int[] fieldEnds = new int[FIELDS];
+		private int[] exonLengths = new int[64];
+		private int[] exonStarts = new int[64];
+		
+		// the previous line's chromosome, to skip decoding it again
+		private byte[] chrBytes = new byte[0];
+		private Packed chr = null;
+		
+		Chunk(File file, FileChannel channel, long from, long to, int format, int minimumCoverage,
+				Map<String, Map<Integer, Set<Integer>>> junctions_map) {
+			this.file = file;
+			this.channel = channel;
+			this.from = from;
+			this.to = to;
+			this.format = format;
+			this.minimumCoverage = minimumCoverage;
+			this.junctions_map = junctions_map;
+		}
+		
+		@Override
+		public Integer call() throws IOException {
+			data = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+			int limit = data.limit();
+			int lines = 0;
+			for(int p = 0; p < limit; ) {
+				int end = p;
+				while(end < limit && data.get(end) != '\n') {
+					end++;
+				}
+				int next = end + 1;
+				if(end > p && data.get(end - 1) == '\r') {
+					end--;
+				}
+				
+				if(end > p) {
+					parseLine(p, end);
+					lines++;
+				}
+				p = next;
+			}
+			return lines;
+		}
+		
+		private void parseLine(int start, int end) {
+			int fields = 0;
+			fieldStarts[0] = start;
+			for(int p = start; p < end && fields < FIELDS; p++) {
+				if(data.get(p) == '\t') {
+					fieldEnds[fields++] = p;
+					if(fields < FIELDS) {
+						fieldStarts[fields] = p + 1;
+					}
+				}
+			}
+			if(fields < FIELDS) {
+				fieldEnds[fields++] = end;
+			}
+			
+			if(format == GENES) {
+				if(!chromosome()) {
+					return;
+				}
+				
+				require(fields, 12, start);
+				int txStart = parseInt(1);
+				int nExons = parseInt(9);
+				int lengths = parseList(10, nExons - 1);
+				int starts = parseList(11, nExons);
+				if(lengths < nExons - 1 || starts < nExons) {
+					throw new IllegalArgumentException("Fewer exons than blockCount " + nExons + " in " + file + " at byte " + (from + start));
+				}
+				
+				for(int i = 0; i < nExons - 1; i++) {
+					chr.add(txStart + exonStarts[i] + exonLengths[i] - 1, txStart + exonStarts[i + 1]);
+				}
+			} else {
+				require(fields, 7, start);
+				int junctionStart = parseInt(1) - 2;
+				int junctionEnd = parseInt(2);
+				int cov = parseInt(6);
+				
+				if(cov >= minimumCoverage && chromosome()) {
+					chr.add(junctionStart, junctionEnd);
+				}
+			}
+		}
+		
+		private void require(int fields, int required, int start) {
+			if(fields < required) {
+				throw new IllegalArgumentException("Expected " + required + " tab-separated fields, found " + fields + " in " + file
+						+ " at byte " + (from + start));
+			}
+		}
+		
+		/**
+		 * Points chr at the current line's chromosome, returning false if it isn't loaded.
+		 */
+		private boolean chromosome() {
+			int start = fieldStarts[0], length = fieldEnds[0] - start;
+			boolean same = length == chrBytes.length;
+			for(int i = 0; same && i < length; i++) {
+				same = data.get(start + i) == chrBytes[i];
+			}
+			
+			if(!same) {
+				chrBytes = new byte[length];
+				for(int i = 0; i < length; i++) {
+					chrBytes[i] = data.get(start + i);
+				}
+				
+				String name = new String(chrBytes, StandardCharsets.UTF_8);
+				chr = null;
+				if(junctions_map.containsKey(name)) {
+					chr = junctions.get(name);
+					if(chr == null) {
+						chr = new Packed();
+						junctions.put(name, chr);
+					}
+				}
+			}
+			return chr != null;
+		}
+		
+		private int parseInt(int field) {
+			return parseInt(fieldStarts[field], fieldEnds[field]);
+		}
+		
+		/**
+		 * An int in [start, end), as Integer.parseInt would read it.
+		 */
+		private int parseInt(int start, int end) {
+			int p = start;
+			boolean negative = false;
+			if(p < end && (data.get(p) == '-' || data.get(p) == '+')) {
+				negative = data.get(p) == '-';
+				p++;
+			}
+			if(p == end || end - p > 10) {
+				throw numberFormat(start, end);
+			}
+			
+			long value = 0;
+			for(; p < end; p++) {
+				int digit = data.get(p) - '0';
+				if(digit < 0 || digit > 9) {
+					throw numberFormat(start, end);
+				}
+				value = 10 * value + digit;
+			}
+			value = negative ? -value : value;
+			if(value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+				throw numberFormat(start, end);
+			}
+			return (int) value;
+		}
+		
+		private NumberFormatException numberFormat(int start, int end) {
+			byte[] text = new byte[end - start];
+			for(int i = 0; i < text.length; i++) {
+				text[i] = data.get(start + i);
+			}
+			return new NumberFormatException("For input string: \"" + new String(text, StandardCharsets.UTF_8) + "\" in " + file
+					+ " at byte " + (from + start));
+		}
+		
+		/**
+		 * Parses up to <code>max</code> values of the comma-separated list in <code>field</code> into
+		 * exonLengths (field 10) or exonStarts (field 11), returning how many there were.
+		 */
+		private int parseList(int field, int max) {
+			int[] values = field == 10 ? exonLengths : exonStarts;
+			if(values.length < max) {
+				values = new int[Math.max(max, 2 * values.length)];
+				if(field == 10) {
+					exonLengths = values;
+				} else {
+					exonStarts = values;
+				}
+			}
+			
+			int n = 0;
+			int end = fieldEnds[field];
+			for(int p = fieldStarts[field]; p < end && n < max; ) {
+				int q = p;
+				while(q < end && data.get(q) != ',') {
+					q++;
+				}
+				values[n++] = parseInt(p, q);
+				p = q + 1;
+			}
+			return n;
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package edu.cornell.med.icb.masonlab.meripper.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Minimal decoder for an uncompressed BAM stream (e.g. a ParallelBgzfInputStream), reading only
+ * what the counters use: the reference, flags, position and CIGAR of each record, which become the
+ * alignment blocks of a ReadBatch exactly as htsjdk's SAMRecord.getAlignmentBlocks() derives them.
+ * Unmapped and unplaced records are skipped. Record order doesn't matter, so unsorted and
+ * name-sorted files decode just like coordinate-sorted ones.
+ */
+public class BamReadDecoder {
+	private static final int FLAG_UNMAPPED = 0x4;
+	
+	// CIGAR operations MIDNSHP=X
+	private static final int OP_M = 0, OP_D = 2, OP_N = 3, OP_S = 4, OP_EQ = 7, OP_X = 8;
+	
+	private final InputStream in;
+	private final String[] references;
+	
+	private byte[] buffer = new byte[1 << 16];
+	private int start, end;
+	private boolean eof;
+	
+	public BamReadDecoder(InputStream in) throws IOException {
+		this.in = in;
+		
+		if(!ensure(4) || buffer[0] != 'B' || buffer[1] != 'A' || buffer[2] != 'M' || buffer[3] != 1) {
+			throw new IOException("Not a BAM stream");
+		}
+		start += 4;
+		
+		int textLength = readInt();
+		skip(textLength);
+		
+		this.references = new String[readInt()];
+		for(int i = 0; i < references.length; i++) {
+			int nameLength = readInt();
+			require(nameLength);
+			// names are NUL-terminated
+			references[i] = new String(buffer, start, nameLength - 1, "US-ASCII").intern();
+			start += nameLength;
+			readInt();
+		}
+	}
+	
+	public String[] references() {
+		return references;
+	}
+	
+	/**
+	 * Decodes records into <code>batch</code> until it is full or the stream ends, returning the
+	 * number of records read (mapped or not), 0 at the end of the stream.
+	 */
+	public int fill(ReadBatch batch) throws IOException {
+		int records = 0;
+		while(!batch.isFull() && ensure(4)) {
+			int blockSize = readInt();
+			require(blockSize);
+			int record = start;
+			start += blockSize;
+			records++;
+			
+			int referenceIndex = intAt(record);
+			int position = intAt(record + 4);
+			int nameLength = buffer[record + 8] & 0xff;
+			int cigarLength = shortAt(record + 12);
+			int flags = shortAt(record + 14);
+			int sequenceLength = intAt(record + 16);
+			if((flags & FLAG_UNMAPPED) != 0 || referenceIndex < 0) {
+				continue;
+			}
+			
+			int cigar = record + 32 + nameLength;
+			if(cigarLength == 2 && (intAt(cigar) & 0xf) == OP_S && (intAt(cigar) >>> 4) == sequenceLength
+					&& (intAt(cigar + 4) & 0xf) == OP_N) {
+				// the real CIGAR didn't fit in 16 bits and is in the CG tag
+				int tags = cigar + 4 * cigarLength + (sequenceLength + 1) / 2 + sequenceLength;
+				int cg = findLongCigar(tags, record + blockSize);
+				if(cg >= 0) {
+					cigarLength = intAt(cg - 4);
+					cigar = cg;
+				}
+			}
+			
+			batch.addRead(references[referenceIndex]);
+			int referenceStart = position + 1;
+			for(int i = 0; i < cigarLength; i++) {
+				int op = intAt(cigar + 4 * i);
+				int length = op >>> 4;
+				switch(op & 0xf) {
+					case OP_M:
+					case OP_EQ:
+					case OP_X:
+						batch.addBlock(referenceStart, length);
+						referenceStart += length;
+						break;
+					case OP_D:
+					case OP_N:
+						referenceStart += length;
+						break;
+					default:
+						// I, S, H and P don't consume the reference
+						break;
+				}
+			}
+		}
+		
+		return records;
+	}
+	
+	/**
+	 * Offset of the uint32 values of a "CG:B:I" tag between <code>tag</code> and <code>end</code>, -1 if absent.
+	 */
+	private int findLongCigar(int tag, int end) throws IOException {
+		while(tag + 3 <= end) {
+			char type = (char) buffer[tag + 2];
+			boolean cg = buffer[tag] == 'C' && buffer[tag + 1] == 'G';
+			int value = tag + 3;
+			switch(type) {
+				case 'A': case 'c': case 'C':
+					tag = value + 1;
+					break;
+				case 's': case 'S':
+					tag = value + 2;
+					break;
+				case 'i': case 'I': case 'f':
+					tag = value + 4;
+					break;
+				case 'Z': case 'H':
+					tag = value;
+					while(tag < end && buffer[tag] != 0) {
+						tag++;
+					}
+					tag++;
+					break;
+				case 'B':
+					char subtype = (char) buffer[value];
+					int count = intAt(value + 1);
+					if(cg && subtype == 'I') {
+						return value + 5;
+					}
+					int width = subtype == 'c' || subtype == 'C' ? 1 : subtype == 's' || subtype == 'S' ? 2 : 4;
+					tag = value + 5 + width * count;
+					break;
+				default:
+					throw new IOException("Unknown BAM tag type '" + type + "'");
+			}
+		}
+		return -1;
+	}
+	
+	private int readInt() throws IOException {
+		require(4);
+		int value = intAt(start);
+		start += 4;
+		return value;
+	}
+	
+	private void skip(int n) throws IOException {
+		while(n > 0) {
+			if(!ensure(1)) {
+				throw new EOFException("Truncated BAM stream");
+			}
+			int skipped = Math.min(n, end - start);
+			start += skipped;
+			n -= skipped;
+		}
+	}
+	
+	private void require(int n) throws IOException {
+		if(!ensure(n)) {
+			throw new EOFException("Truncated BAM stream");
+		}
+	}
+	
+	/**
+	 * Makes at least <code>n</code> bytes available from <code>start</code>, false if the stream ends first.
+	 */
+	private boolean ensure(int n) throws IOException {
+		if(end - start >= n) {
+			return true;
+		}
+		
+		if(start > 0) {
+			System.arraycopy(buffer, start, buffer, 0, end - start);
+			end -= start;
+			start = 0;
+		}
+		if(n > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(n, 2 * buffer.length));
+		}
+		
+		while(end < n && !eof) {
+			int r = in.read(buffer, end, buffer.length - end);
+			if(r < 0) {
+				eof = true;
+			} else {
+				end += r;
+			}
+		}
+		
+		return end >= n;
+	}
+	
+	private int intAt(int i) {
+		return (buffer[i] & 0xff) | (buffer[i + 1] & 0xff) << 8 | (buffer[i + 2] & 0xff) << 16 | (buffer[i + 3] & 0xff) << 24;
+	}
+	
+	private int shortAt(int i) {
+		return (buffer[i] & 0xff) | (buffer[i + 1] & 0xff) << 8;
+	}
+}
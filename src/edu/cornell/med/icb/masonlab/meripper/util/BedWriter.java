@@ -0,0 +1,141 @@
+package edu.cornell.med.icb.masonlab.meripper.util;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Buffered BED output. Intervals are formatted straight into byte arrays, each chromosome's on a
+ * pool thread of its own, and written in sorted chromosome order with one large write per chromosome.
+ * A file whose name ends in .gz is gzip-compressed.
+ */
+public class BedWriter implements Closeable {
+	private static final int BUFFER_SIZE = 1 << 20;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private final OutputStream out;
+	
+	public BedWriter(File file) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		if(file.getName().endsWith(".gz")) {
+			out = new GZIPOutputStream(out, BUFFER_SIZE);
+		}
+		this.out = new BufferedOutputStream(out, BUFFER_SIZE);
+	}
+	
+	/**
+	 * Writes "chr start end" lines for every chromosome's intervals, chromosomes in sorted order and
+	 * intervals in list order.
+	 */
+	public void write(ExecutorService threadPool, final Map<String, List<Interval>> intervals)
+			throws IOException, InterruptedException, ExecutionException {
+		List<String> chrs = new ArrayList<String>(intervals.keySet());
+		Collections.sort(chrs);
+		
+		List<Future<LineBuffer>> formatted = new ArrayList<Future<LineBuffer>>();
+		for(final String chr : chrs) {
+			formatted.add(threadPool.submit(new Callable<LineBuffer>() {
+				@Override
+				public LineBuffer call() {
+					return format(chr, intervals.get(chr));
+				}}));
+		}
+		
+		for(Future<LineBuffer> lines : formatted) {
+			LineBuffer buffer = lines.get();
+			out.write(buffer.bytes, 0, buffer.size);
+		}
+	}
+	
+	/**
+	 * Writes one preformatted line.
+	 */
+	public void writeLine(String line) throws IOException {
+		out.write(line.getBytes(UTF8));
+		out.write('\n');
+	}
+	
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+	
+	private static LineBuffer format(String chr, List<Interval> intervals) {
+		byte[] name = chr.getBytes(UTF8);
+		// a guess for short coordinates, grown as needed
+		LineBuffer buffer = new LineBuffer(intervals.size() * (name.length + 16));
+		for(int i = 0; i < intervals.size(); i++) {
+			Interval interval = intervals.get(i);
+			buffer.append(name);
+			buffer.append((byte) '\t');
+			buffer.append(interval.start);
+			buffer.append((byte) '\t');
+			buffer.append(interval.end);
+			buffer.append((byte) '\n');
+		}
+		
+		return buffer;
+	}
+	
+	private static class LineBuffer {
+		byte[] bytes;
+		int size;
+		
+		LineBuffer(int capacity) {
+			this.bytes = new byte[Math.max(capacity, 64)];
+		}
+		
+		void append(byte b) {
+			ensure(1);
+			bytes[size++] = b;
+		}
+		
+		void append(byte[] b) {
+			ensure(b.length);
+			System.arraycopy(b, 0, bytes, size, b.length);
+			size += b.length;
+		}
+		
+		/**
+		 * Appends the decimal digits of <code>value</code> without going through a String.
+		 */
+		void append(int value) {
+			ensure(11);
+			long v = value;
+			if(v < 0) {
+				bytes[size++] = '-';
+				v = -v;
+			}
+			
+			int digits = 1;
+			for(long p = 10; p <= v; p *= 10) {
+				digits++;
+			}
+			for(int i = size + digits - 1; i >= size; i--) {
+				bytes[i] = (byte) ('0' + v % 10);
+				v /= 10;
+			}
+			size += digits;
+		}
+		
+		private void ensure(int n) {
+			if(size + n > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(size + n, 2 * bytes.length));
+			}
+		}
+	}
+}
@@ -0,0 +1,317 @@
+package edu.cornell.med.icb.masonlab.meripper.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+
+/**
+ * On-disk cache of one input file's window counts, junction counts and read count, so a rerun with
+ * different test or filter settings (alpha, p.adjust, min-window) can skip reading the BAM.
+ * <p>
+ * The cache is keyed by the input's size, modification time and a hash of its first and last MiB,
+ * and by everything the counts depend on: window size, step size, chromosome sizes and junction
+ * flanks. The key names the cache file, so changing any of them simply misses.
+ * <p>
+ * Layout (big-endian): the header length, then the header (key, read count and per chromosome its
+ * name, window count, encoding, entry count, junction count and data offset), then the data. Each
+ * chromosome's windows are stored dense (one int per window) or, when fewer than half are covered,
+ * sparse (window, count pairs), followed by one int per junction. Every chromosome's data is mapped
+ * on its own, which keeps each mapping under the 2 GB a MappedByteBuffer can address.
+ */
+public class CountCache {
+	private static final int MAGIC = 0x4d525043; // "MRPC"
+	private static final int VERSION = 1;
+	private static final int DENSE = 0, SPARSE = 1;
+	private static final int HASHED_BYTES = 1 << 20;
+	
+	private final File input;
+	private final File file;
+	private final String key;
+	private final TreeMap<String, Integer> numWindows = new TreeMap<String, Integer>();
+	
+	public CountCache(File directory, File input, int window_size, int step_size, Map<String, Integer> genomeSizes,
+			Map<String, JunctionIndex> junctions) throws IOException {
+		this.input = input;
+		
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(VERSION);
+		out.writeLong(input.length());
+		out.writeLong(input.lastModified());
+		out.writeInt(window_size);
+		out.writeInt(step_size);
+		for(Map.Entry<String, Integer> chr : new TreeMap<String, Integer>(genomeSizes).entrySet()) {
+			numWindows.put(chr.getKey(), WindowCounts.numWindows(chr.getValue(), step_size));
+			out.writeUTF(chr.getKey());
+			out.writeInt(chr.getValue());
+			
+			JunctionIndex index = junctions.get(chr.getKey());
+			int size = index == null ? 0 : index.size();
+			out.writeInt(size);
+			for(int id = 0; id < size; id++) {
+				out.writeInt(index.start(id));
+				out.writeInt(index.end(id));
+			}
+		}
+		out.close();
+		digest.update(bytes.toByteArray());
+		
+		RandomAccessFile in = new RandomAccessFile(input, "r");
+		try {
+			byte[] buffer = new byte[(int) Math.min(HASHED_BYTES, in.length())];
+			in.readFully(buffer);
+			digest.update(buffer);
+			in.seek(in.length() - buffer.length);
+			in.readFully(buffer);
+			digest.update(buffer);
+		} finally {
+			in.close();
+		}
+		
+		StringBuilder hex = new StringBuilder();
+		for(byte b : digest.digest()) {
+			hex.append(String.format("%02x", b));
+		}
+		this.key = hex.toString();
+		this.file = new File(directory, input.getName() + "." + this.key.substring(0, 16) + ".counts");
+	}
+	
+	public File file() {
+		return file;
+	}
+	
+	/**
+	 * Whether the cache file exists and holds counts for this key.
+	 */
+	public boolean isValid() {
+		if(!file.exists()) {
+			return false;
+		}
+		
+		try {
+			List<Section> sections = new ArrayList<Section>();
+			readHeader(sections);
+			return true;
+		} catch(IOException e) {
+			System.err.println("WARNING: ignoring unusable count cache " + file + ": " + e.getMessage());
+			return false;
+		}
+	}
+	
+	/**
+	 * A task loading the cached counts into fresh <code>counters</code> (and <code>junction_counters</code>,
+	 * if not null), returning the cached read count.
+	 */
+	public Callable<Integer> loader(final Map<String, WindowCounts> counters, final Map<String, int[]> junction_counters) {
+		return new Callable<Integer>() {
+			@Override
+			public Integer call() throws IOException {
+				long startTime = System.currentTimeMillis();
+				List<Section> sections = new ArrayList<Section>();
+				int reads = readHeader(sections);
+				
+				RandomAccessFile in = new RandomAccessFile(file, "r");
+				try {
+					FileChannel channel = in.getChannel();
+					for(Section section : sections) {
+						MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, section.offset, section.length());
+						IntBuffer ints = data.asIntBuffer();
+						
+						WindowCounts counter = counters.get(section.chr);
+						counter.resolve();
+						if(section.encoding == DENSE) {
+							counter.set(ints);
+						} else {
+							for(int i = 0; i < section.entries; i++) {
+								counter.set(ints.get(), ints.get());
+							}
+						}
+						
+						if(junction_counters != null) {
+							ints.get(junction_counters.get(section.chr), 0, section.junctions);
+						}
+					}
+				} finally {
+					in.close();
+				}
+				
+				System.err.println("Loaded counts for " + input + " from " + file + " in "
+						+ (System.currentTimeMillis() - startTime) + " ms");
+				return reads;
+			}};
+	}
+	
+	/**
+	 * Writes the counts of <code>reads</code> reads to the cache, resolving any difference counters first.
+	 * The file is written under a temporary name and moved into place, so readers never see a partial cache.
+	 */
+	public void write(int reads, Map<String, WindowCounts> counters, Map<String, int[]> junction_counters) throws IOException {
+		List<Section> sections = new ArrayList<Section>();
+		for(Map.Entry<String, Integer> chr : numWindows.entrySet()) {
+			WindowCounts counter = counters.get(chr.getKey());
+			counter.resolve();
+			
+			int covered = 0;
+			for(int i = 0; i < counter.size(); i++) {
+				if(counter.get(i) != 0) {
+					covered++;
+				}
+			}
+			
+			Section section = new Section();
+			section.chr = chr.getKey();
+			section.numWindows = counter.size();
+			section.encoding = 2L * covered < counter.size() ? SPARSE : DENSE;
+			section.entries = section.encoding == SPARSE ? covered : counter.size();
+			section.junctions = junction_counters == null ? 0 : junction_counters.get(chr.getKey()).length;
+			sections.add(section);
+		}
+		
+		// offsets are fixed-width, so the header's length doesn't depend on their values
+		byte[] header = header(reads, sections);
+		long offset = 4 + header.length;
+		for(Section section : sections) {
+			section.offset = offset;
+			offset += section.length();
+		}
+		header = header(reads, sections);
+		
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 20));
+		try {
+			out.writeInt(header.length);
+			out.write(header);
+			for(Section section : sections) {
+				WindowCounts counter = counters.get(section.chr);
+				for(int i = 0; i < counter.size(); i++) {
+					int count = counter.get(i);
+					if(section.encoding == DENSE) {
+						out.writeInt(count);
+					} else if(count != 0) {
+						out.writeInt(i);
+						out.writeInt(count);
+					}
+				}
+				
+				if(section.junctions > 0) {
+					for(int count : junction_counters.get(section.chr)) {
+						out.writeInt(count);
+					}
+				}
+			}
+		} finally {
+			out.close();
+		}
+		
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+	
+	private byte[] header(int reads, List<Section> sections) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeUTF(key);
+		out.writeInt(reads);
+		out.writeInt(sections.size());
+		for(Section section : sections) {
+			out.writeUTF(section.chr);
+			out.writeInt(section.numWindows);
+			out.writeInt(section.encoding);
+			out.writeInt(section.entries);
+			out.writeInt(section.junctions);
+			out.writeLong(section.offset);
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Reads and checks the header into <code>sections</code>, returning the read count.
+	 */
+	private int readHeader(List<Section> sections) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		long fileLength = in.length();
+		byte[] header;
+		try {
+			int length = in.readInt();
+			if(length < 0 || length > in.length() - 4) {
+				throw new IOException("corrupt header");
+			}
+			header = new byte[length];
+			in.readFully(header);
+		} finally {
+			in.close();
+		}
+		
+		DataInputStream data = new DataInputStream(new ByteArrayInputStream(header));
+		if(data.readInt() != MAGIC || data.readInt() != VERSION) {
+			throw new IOException("not a count cache of this version");
+		}
+		if(!data.readUTF().equals(key)) {
+			throw new IOException("counts of different input or settings");
+		}
+		
+		int reads = data.readInt();
+		int numChrs = data.readInt();
+		if(numChrs != numWindows.size()) {
+			throw new IOException("chromosomes differ");
+		}
+		for(int c = 0; c < numChrs; c++) {
+			Section section = new Section();
+			section.chr = data.readUTF();
+			section.numWindows = data.readInt();
+			section.encoding = data.readInt();
+			section.entries = data.readInt();
+			section.junctions = data.readInt();
+			section.offset = data.readLong();
+			if(!numWindows.containsKey(section.chr) || numWindows.get(section.chr) != section.numWindows) {
+				throw new IOException("chromosome " + section.chr + " differs");
+			}
+			if(section.offset + section.length() > fileLength) {
+				throw new IOException("truncated");
+			}
+			sections.add(section);
+		}
+		
+		return reads;
+	}
+	
+	private static class Section {
+		String chr;
+		int numWindows;
+		int encoding;
+		int entries;
+		int junctions;
+		long offset;
+		
+		long length() {
+			return 4L * (encoding == SPARSE ? 2L * entries : entries) + 4L * junctions;
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package edu.cornell.med.icb.masonlab.meripper.util;
+
+import htsjdk.samtools.BAMIndex;
+import htsjdk.samtools.BAMIndexMetaData;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counting progress of one input file, shared by all of its counting tasks. Each task owns a Task
+ * that it updates every few thousand reads (see FLUSH) with the reads counted since and the
+ * position it has reached; the totals are only summed when a ProgressReporter asks for them.
+ * <p>
+ * The number of reads to expect comes from the BAM index's per-reference aligned record counts, so
+ * it is only known for indexed BAMs.
+ */
+public class CountProgress {
+	// reads counted between two updates of a task's progress
+	public static final int FLUSH = 4096;
+	
+	private final File file;
+	private final long expected;
+	private final LongAdder reads = new LongAdder();
+	private final List<Task> tasks = new ArrayList<Task>();
+	private volatile long startNanos = 0;
+	
+	/**
+	 * <code>expected</code> is the number of reads to count, -1 if unknown.
+	 */
+	public CountProgress(File file, long expected) {
+		this.file = file;
+		this.expected = expected;
+	}
+	
+	public File file() {
+		return file;
+	}
+	
+	public long expected() {
+		return expected;
+	}
+	
+	public long reads() {
+		return reads.sum();
+	}
+	
+	/**
+	 * When the first update came in, 0 before.
+	 */
+	public long startNanos() {
+		return startNanos;
+	}
+	
+	public synchronized Task task() {
+		Task task = new Task();
+		tasks.add(task);
+		return task;
+	}
+	
+	/**
+	 * Whether every task has finished.
+	 */
+	public synchronized boolean isDone() {
+		for(Task task : tasks) {
+			if(!task.done) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * "chr:position" of every task still counting, comma-separated.
+	 */
+	public synchronized String positions() {
+		StringBuilder positions = new StringBuilder();
+		for(Task task : tasks) {
+			String chr = task.chr;
+			if(!task.done && chr != null) {
+				positions.append(positions.length() > 0 ? ", " : "").append(chr).append(':').append(task.position);
+			}
+		}
+		return positions.toString();
+	}
+	
+	/**
+	 * One counting task's share of the progress. Only the owning task updates it.
+	 */
+	public class Task {
+		private volatile String chr;
+		private volatile int position;
+		private volatile boolean done;
+		
+		public void update(int counted, String chr, int position) {
+			if(startNanos == 0) {
+				startNanos = System.nanoTime();
+			}
+			reads.add(counted);
+			this.chr = chr;
+			this.position = position;
+		}
+		
+		public void finish() {
+			done = true;
+		}
+	}
+	
+	/**
+	 * The aligned reads the index of <code>file</code> lists on the <code>counted</code> chromosomes,
+	 * -1 without a BAM index.
+	 */
+	public static long indexedReads(File file, Set<String> counted) throws IOException {
+		Map<String, Long> chrs = indexedReadsPerChromosome(file);
+		if(chrs == null) {
+			return -1;
+		}
+		
+		long reads = 0;
+		for(Map.Entry<String, Long> chr : chrs.entrySet()) {
+			if(counted.contains(chr.getKey())) {
+				reads += chr.getValue();
+			}
+		}
+		return reads;
+	}
+	
+	/**
+	 * The aligned reads the index of <code>file</code> lists per chromosome (0 for those without
+	 * any), null without a BAM index.
+	 */
+	public static Map<String, Long> indexedReadsPerChromosome(File file) throws IOException {
+		SamReader reader = ReadCounter.open(file);
+		try {
+			if(!reader.hasIndex()) {
+				return null;
+			}
+			
+			BAMIndex index = reader.indexing().getIndex();
+			Map<String, Long> reads = new HashMap<String, Long>();
+			for(SAMSequenceRecord sequence : reader.getFileHeader().getSequenceDictionary().getSequences()) {
+				BAMIndexMetaData metaData = index.getMetaData(sequence.getSequenceIndex());
+				reads.put(sequence.getSequenceName(), metaData == null ? 0L : (long) metaData.getAlignedRecordCount());
+			}
+			return reads;
+		} finally {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,184 @@
+package edu.cornell.med.icb.masonlab.meripper.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts a stream of doubles in bounded memory: values are collected in a primitive array of
+ * <code>runSize</code>, which is sorted and spilled to a temporary file whenever it fills up, and
+ * the sorted runs are merged when read back. Order is that of Arrays.sort(double[]).
+ */
+public class ExternalDoubleSorter implements Closeable {
+	private final double[] run;
+	private int size;
+	private long count;
+	private final List<File> spills = new ArrayList<File>();
+	private final List<DataInputStream> readers = new ArrayList<DataInputStream>();
+	
+	public ExternalDoubleSorter(int runSize) {
+		this.run = new double[runSize];
+		this.size = 0;
+		this.count = 0;
+	}
+	
+	public void add(double value) throws IOException {
+		if(size == run.length) {
+			spill();
+		}
+		run[size++] = value;
+		count++;
+	}
+	
+	public long size() {
+		return count;
+	}
+	
+	public int spilledRuns() {
+		return spills.size();
+	}
+	
+	/**
+	 * All values added so far, in ascending order. No values may be added after this.
+	 */
+	public Cursor sorted() throws IOException {
+		Arrays.sort(run, 0, size);
+		final ArrayCursor memory = new ArrayCursor(run, size);
+		if(spills.isEmpty()) {
+			return memory;
+		}
+		
+		final PriorityQueue<Cursor> heads = new PriorityQueue<Cursor>(spills.size() + 1, new Comparator<Cursor>() {
+			@Override
+			public int compare(Cursor o1, Cursor o2) {
+				return Double.compare(o1.value(), o2.value());
+			}});
+		for(File spill : spills) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spill), 1 << 16));
+			readers.add(in);
+			Cursor cursor = new FileCursor(in, spill.length() / 8);
+			if(cursor.next()) {
+				heads.add(cursor);
+			}
+		}
+		if(memory.next()) {
+			heads.add(memory);
+		}
+		
+		// k-way merge, the cursor with the smallest head always at the top of the queue
+		return new Cursor() {
+			private double value;
+			
+			@Override
+			public boolean next() throws IOException {
+				Cursor head = heads.poll();
+				if(head == null) {
+					return false;
+				}
+				value = head.value();
+				if(head.next()) {
+					heads.add(head);
+				}
+				return true;
+			}
+			
+			@Override
+			public double value() {
+				return value;
+			}};
+	}
+	
+	private void spill() throws IOException {
+		Arrays.sort(run, 0, size);
+		File file = File.createTempFile("pvalues", ".run");
+		file.deleteOnExit();
+		spills.add(file);
+		
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		try {
+			for(int i = 0; i < size; i++) {
+				out.writeDouble(run[i]);
+			}
+		} finally {
+			out.close();
+		}
+		size = 0;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		for(DataInputStream in : readers) {
+			in.close();
+		}
+		for(File spill : spills) {
+			spill.delete();
+		}
+	}
+	
+	/**
+	 * Forward-only iteration over sorted values: next() moves to the next value, false past the last.
+	 */
+	public interface Cursor {
+		boolean next() throws IOException;
+		
+		double value();
+	}
+	
+	private static class ArrayCursor implements Cursor {
+		private final double[] values;
+		private final int size;
+		private int i = -1;
+		
+		ArrayCursor(double[] values, int size) {
+			this.values = values;
+			this.size = size;
+		}
+		
+		@Override
+		public boolean next() {
+			return ++i < size;
+		}
+		
+		@Override
+		public double value() {
+			return values[i];
+		}
+	}
+	
+	private static class FileCursor implements Cursor {
+		private final DataInputStream in;
+		private long remaining;
+		private double value;
+		
+		FileCursor(DataInputStream in, long size) {
+			this.in = in;
+			this.remaining = size;
+		}
+		
+		@Override
+		public boolean next() throws IOException {
+			if(remaining == 0) {
+				return false;
+			}
+			remaining--;
+			value = in.readDouble();
+			return true;
+		}
+		
+		@Override
+		public double value() {
+			return value;
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package edu.cornell.med.icb.masonlab.meripper.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Memoized Fisher's exact test p-values for one run. The library totals are fixed, so a window's
+ * p-value only depends on its (sample_count, control_count) pair, and most windows share a small set
+ * of low-count pairs. One instance is shared by all chromosome tasks.
+ * <p>
+ * Pairs below DENSE_SIZE in both counts live in a lock-free primitive table; all others go to a
+ * concurrent map that stops growing once it holds <code>maxEntries</code> pairs, after which new
+ * pairs are computed but not stored.
+ * <p>
+ * With a <code>threshold</code> below 1 only the pass/fail outcome at that threshold is exact:
+ * tests stop as soon as a p-value is known to exceed it, and windows with too few reads to ever
+ * reach it are not tested at all (reported as 1.0). The threshold is fixed per instance, so cached
+ * and freshly computed values are always consistent.
+ */
+public class FisherPValueCache {
+	public static final int DENSE_SIZE = 256;
+	
+	private static final long EMPTY = Double.doubleToRawLongBits(-1.0);
+	
+	private final FisherExactTest fisher;
+	private final double threshold;
+	private final long minTotal;
+	private final int maxEntries;
+	private final AtomicLongArray dense;
+	private final ConcurrentHashMap<Long, Double> overflow;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder skipped = new LongAdder();
+	
+	public FisherPValueCache(int sampleReadCounts, int controlReadCounts, int maxEntries) {
+		this(sampleReadCounts, controlReadCounts, maxEntries, 1.0);
+	}
+	
+	public FisherPValueCache(int sampleReadCounts, int controlReadCounts, int maxEntries, double threshold) {
+		this.fisher = new FisherExactTest(sampleReadCounts, controlReadCounts);
+		this.threshold = threshold;
+		this.minTotal = fisher.minTotal(threshold);
+		this.maxEntries = maxEntries;
+		this.dense = new AtomicLongArray(DENSE_SIZE * DENSE_SIZE);
+		for(int i = 0; i < dense.length(); i++) {
+			dense.lazySet(i, EMPTY);
+		}
+		this.overflow = new ConcurrentHashMap<Long, Double>();
+	}
+	
+	public double pvalue(int sample_count, int control_count) {
+		if((long) sample_count + control_count < minTotal) {
+			skipped.increment();
+			return 1.0;
+		}
+		
+		if(sample_count < DENSE_SIZE && control_count < DENSE_SIZE) {
+			int slot = sample_count * DENSE_SIZE + control_count;
+			long bits = dense.get(slot);
+			if(bits != EMPTY) {
+				hits.increment();
+				return Double.longBitsToDouble(bits);
+			}
+			
+			misses.increment();
+			double pvalue = fisher.test(sample_count, control_count, threshold);
+			dense.set(slot, Double.doubleToRawLongBits(pvalue));
+			return pvalue;
+		}
+		
+		Long key = ((long) sample_count << 32) | (control_count & 0xffffffffL);
+		Double cached = overflow.get(key);
+		if(cached != null) {
+			hits.increment();
+			return cached;
+		}
+		
+		misses.increment();
+		double pvalue = fisher.test(sample_count, control_count, threshold);
+		if(overflow.size() < maxEntries) {
+			overflow.put(key, pvalue);
+		}
+		return pvalue;
+	}
+	
+	public double threshold() {
+		return threshold;
+	}
+	
+	public long hits() {
+		return hits.sum();
+	}
+	
+	public long misses() {
+		return misses.sum();
+	}
+	
+	public long skipped() {
+		return skipped.sum();
+	}
+	
+	public String toString() {
+		long h = hits(), m = misses();
+		return "P-value cache: " + h + " hits, " + m + " misses ("
+				+ (h + m > 0 ? Math.round(1000.0 * h / (h + m)) / 10.0 : 0.0) + "% hit rate), "
+				+ overflow.size() + " overflow entries"
+				+ (threshold < 1 ? ", " + skipped() + " windows below " + minTotal + " reads skipped" : "");
+	}
+}
@@ -1,54 +1,57 @@
 package edu.cornell.med.icb.masonlab.meripper.util;
 
-import java.util.Map;
 import java.util.concurrent.Callable;
 
-import org.rfoundation.R.library.stats.FisherTest;
-
 public class FishersTestThread implements Callable<Integer> {
-	private final Map<Integer, Integer> sample;
-	private final Map<Integer, Integer> control;
+	private final WindowCounts sample;
+	private final WindowCounts control;
 	private final int sampleReadCounts;
 	private final int controlReadCounts;
-	private final Map<Integer, Double> significantWindows;
+	private final int STEP_SIZE;
+	private final WindowPValues significantWindows;
+	private final FisherPValueCache pvalues;
 	
-	public FishersTestThread(Map<Integer, Integer> sample, Map<Integer, Integer> control, int sampleReadCounts, int controlReadCounts, 
-			Map<Integer, Double> significantWindows) {
+	public FishersTestThread(WindowCounts sample, WindowCounts control, int sampleReadCounts, int controlReadCounts, 
+			int step_size, WindowPValues significantWindows, FisherPValueCache pvalues) {
 		this.sample = sample;
 		this.control = control;
 		this.sampleReadCounts = sampleReadCounts;
 		this.controlReadCounts = controlReadCounts;
+		this.STEP_SIZE = step_size;
 		this.significantWindows = significantWindows;
+		this.pvalues = pvalues;
 	}
 
 	@Override
 	public Integer call() {
-		int[][] fisherstable = new int[2][2];
+		// difference-mode counters become counts here, one chromosome per task
+		sample.resolve();
+		control.resolve();
 		
-		for(int window : sample.keySet()) {
-			int sample_count = 0;
-			int control_count = 0;
-			if(sample.containsKey(window)) {
-				sample_count = sample.get(window);
-			}
-			if(control.containsKey(window)) {
-				control_count = control.get(window);
+		if(sample.isSparse()) {
+			// only windows with sample reads are tested, so a sparse sample needs no full scan
+			for(int window : sample.coveredWindows()) {
+				test(window);
 			}
-			
-			if(sample_count > 0 && (1.0 * sample_count / sampleReadCounts >= 1.0 * control_count / controlReadCounts)) {
-				fisherstable[0][0] = sample_count;
-				fisherstable[0][1] = sampleReadCounts - sample_count;
-				fisherstable[1][0] = control_count;
-				fisherstable[1][1] = controlReadCounts - control_count;
-				
-				double pvalue = FisherTest.test(fisherstable);
-				if(pvalue <= 0.05) {
-					/* NOTE: ASSUME ONLY ONE THREAD WILL ACCESS THIS AT A TIME */
-					significantWindows.put(window, pvalue);
-				}
+		} else {
+			for(int window = 0; window < sample.size(); window++) {
+				test(window);
 			}
 		}
 		
 		return new Integer(0);
 	}
+	
+	private void test(int window) {
+		int sample_count = sample.get(window);
+		int control_count = control.get(window);
+		
+		if(sample_count > 0 && (1.0 * sample_count / sampleReadCounts >= 1.0 * control_count / controlReadCounts)) {
+			double pvalue = pvalues.pvalue(sample_count, control_count);
+			if(pvalue <= 0.05 && pvalue <= pvalues.threshold()) {
+				/* NOTE: ASSUME ONLY ONE THREAD WILL ACCESS THIS AT A TIME */
+				significantWindows.add(window * STEP_SIZE, pvalue);
+			}
+		}
+	}
 }
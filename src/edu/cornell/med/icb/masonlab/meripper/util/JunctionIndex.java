@@ -0,0 +1,113 @@
+package edu.cornell.med.icb.masonlab.meripper.util;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable, array-backed index of one chromosome's junction flanks. Every splice junction
+ * (start, end) contributes the two closed intervals [start - WINDOW_SIZE, start] and
+ * [end, end + WINDOW_SIZE - 1]; identical intervals are stored once. Intervals are sorted by
+ * (start, end) and identified by their position, so per-junction counts and p-values can live
+ * in plain arrays indexed by id.
+ * <p>
+ * An overlap query binary-searches the starts for its right bound and the running maximum of the
+ * ends for its left bound, then scans only the ids in between.
+ */
+public class JunctionIndex {
+	private final int[] starts;
+	private final int[] ends;
+	private final int[] maxEnds;
+	
+	public JunctionIndex(Map<Integer, Set<Integer>> junctions_map, int window_size) {
+		int n = 0;
+		for(Set<Integer> ends : junctions_map.values()) {
+			n += 2 * ends.size();
+		}
+		
+		// (start, end) packed so that signed long order is interval order
+		long[] intervals = new long[n];
+		n = 0;
+		for(Map.Entry<Integer, Set<Integer>> entry : junctions_map.entrySet()) {
+			int start = entry.getKey();
+			for(int end : entry.getValue()) {
+				intervals[n++] = pack(start - window_size, start);
+				intervals[n++] = pack(end, end + window_size - 1);
+			}
+		}
+		Arrays.sort(intervals);
+		
+		int size = 0;
+		for(int i = 0; i < n; i++) {
+			if(size == 0 || intervals[i] != intervals[size - 1]) {
+				intervals[size++] = intervals[i];
+			}
+		}
+		
+		this.starts = new int[size];
+		this.ends = new int[size];
+		this.maxEnds = new int[size];
+		for(int i = 0; i < size; i++) {
+			starts[i] = (int) (intervals[i] >> 32);
+			ends[i] = (int) ((intervals[i] & 0xffffffffL) + Integer.MIN_VALUE);
+			maxEnds[i] = i == 0 ? ends[i] : Math.max(maxEnds[i - 1], ends[i]);
+		}
+	}
+	
+	private static long pack(int start, int end) {
+		return ((long) start << 32) + ((long) end - Integer.MIN_VALUE);
+	}
+	
+	public int size() {
+		return starts.length;
+	}
+	
+	public int start(int id) {
+		return starts[id];
+	}
+	
+	public int end(int id) {
+		return ends[id];
+	}
+	
+	/**
+	 * First id that may overlap a query starting at <code>start</code>; no earlier interval
+	 * reaches it.
+	 */
+	public int firstCandidate(int start) {
+		int lo = 0, hi = maxEnds.length;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(maxEnds[mid] < start) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+	
+	/**
+	 * One past the last id that may overlap a query ending at <code>end</code>, i.e. the first
+	 * interval starting after it.
+	 */
+	public int lastCandidate(int end) {
+		int lo = 0, hi = starts.length;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(starts[mid] <= end) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+	
+	/**
+	 * Whether interval <code>id</code> overlaps the closed interval [start, end].
+	 */
+	public boolean overlaps(int id, int start, int end) {
+		return starts[id] <= end && ends[id] >= start;
+	}
+}
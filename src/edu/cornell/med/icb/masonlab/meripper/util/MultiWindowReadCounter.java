@@ -0,0 +1,27 @@
+package edu.cornell.med.icb.masonlab.meripper.util;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Counts every read into several window configurations at once, so that a sweep over window and
+ * step sizes reads its inputs only once. Each configuration is a ReadCounter with its own counters,
+ * window size and step size; this counter reads the file (or chromosomes) and hands every read's
+ * alignment blocks to each of them. All configurations must count the same chromosomes.
+ */
+public class MultiWindowReadCounter extends ReadCounter {
+	private final List<ReadCounter> configs;
+	
+	public MultiWindowReadCounter(File file, List<String> chrs, List<ReadCounter> configs) {
+		super(file, chrs, configs.get(0).counters, configs.get(0).WINDOW_SIZE, configs.get(0).STEP_SIZE);
+		this.configs = configs;
+	}
+	
+	@Override
+	protected void count(String chr, int[] starts, int[] lengths, int from, int to, WindowCounts chr_counters) {
+		for(int c = 0; c < configs.size(); c++) {
+			ReadCounter config = configs.get(c);
+			config.count(chr, starts, lengths, from, to, config.counters.get(chr));
+		}
+	}
+}
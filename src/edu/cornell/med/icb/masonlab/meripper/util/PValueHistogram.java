@@ -0,0 +1,69 @@
+package edu.cornell.med.icb.masonlab.meripper.util;
+
+/**
+ * Log-scale p-value histogram for computing a Benjamini-Hochberg cutoff without keeping
+ * (or sorting) the p-values themselves. Bins are 1/BINS_PER_DECADE of a decade wide, so
+ * p-values sharing a bin differ by less than 0.25%.
+ * <p>
+ * The cutoff is conservative: a bin is only rejected if every p-value up to its upper edge
+ * satisfies the BH condition, so the rejected set is always a subset of what exact BH on the
+ * same p-values rejects, differing at most by the p-values of the single bin that straddles
+ * the exact cutoff.
+ */
+public class PValueHistogram {
+	public static final int BINS_PER_DECADE = 1000;
+	
+	// just below the smallest positive double, p-values that underflow to 0 land in bin 0
+	private static final int MIN_LOG10 = -324;
+	
+	private final long[] bins;
+	private long count;
+	
+	public PValueHistogram() {
+		this.bins = new long[-MIN_LOG10 * BINS_PER_DECADE + 1];
+		this.count = 0;
+	}
+	
+	public static int bin(double pvalue) {
+		if(pvalue <= 0) {
+			return 0;
+		}
+		
+		int bin = (int) Math.floor((Math.log10(pvalue) - MIN_LOG10) * BINS_PER_DECADE);
+		return Math.max(0, Math.min(bin, -MIN_LOG10 * BINS_PER_DECADE));
+	}
+	
+	/**
+	 * Upper edge of <code>bin</code>, i.e. every p-value in the bin is at most this value.
+	 */
+	public static double upperEdge(int bin) {
+		return Math.pow(10, MIN_LOG10 + 1.0 * (bin + 1) / BINS_PER_DECADE);
+	}
+	
+	public void add(double pvalue) {
+		bins[bin(pvalue)]++;
+		count++;
+	}
+	
+	public long count() {
+		return count;
+	}
+	
+	/**
+	 * Largest bin B such that rejecting every p-value in bins 0..B satisfies the Benjamini-Hochberg
+	 * condition <code>upperEdge(B) <= alpha * R / N</code>, with R the number of p-values in bins 0..B.
+	 * Returns -1 if no bin qualifies.
+	 */
+	public int cutoffBin(double alpha, long N) {
+		int cutoff = -1;
+		long rejected = 0;
+		for(int b = 0; b < bins.length; b++) {
+			rejected += bins[b];
+			if(bins[b] > 0 && upperEdge(b) <= alpha * rejected / N) {
+				cutoff = b;
+			}
+		}
+		
+		return cutoff;
+	}
+}
@@ -0,0 +1,214 @@
+package edu.cornell.med.icb.masonlab.meripper.util;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Uncompressed view of a BGZF file (e.g. a BAM) whose blocks are inflated in parallel. The
+ * compressed blocks are read sequentially by the consuming thread, up to <code>readAhead</code>
+ * blocks ahead of it, and inflated by <code>inflaters</code>; the inflated blocks are delivered in
+ * file order. The pool must not be one whose threads may be blocked reading this stream.
+ */
+public class ParallelBgzfInputStream extends InputStream {
+	private static final int BGZF_HEADER = 12;
+	private static final int BGZF_FOOTER = 8;
+	
+	private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater(true);
+		}
+	};
+	
+	private final File file;
+	private final InputStream in;
+	private final ExecutorService inflaters;
+	private final int readAhead;
+	private final Queue<Future<byte[]>> blocks = new ArrayDeque<Future<byte[]>>();
+	private final byte[] header = new byte[BGZF_HEADER];
+	private boolean compressedEof;
+	private long blockAddress;
+	
+	private byte[] block = new byte[0];
+	private int position;
+	
+	public ParallelBgzfInputStream(File file, ExecutorService inflaters, int readAhead) throws IOException {
+		this.file = file;
+		this.in = new BufferedInputStream(new FileInputStream(file), 1 << 20);
+		this.inflaters = inflaters;
+		this.readAhead = Math.max(readAhead, 1);
+		this.compressedEof = false;
+		this.blockAddress = 0;
+	}
+	
+	@Override
+	public int read() throws IOException {
+		if(position == block.length && !nextBlock()) {
+			return -1;
+		}
+		return block[position++] & 0xff;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0) {
+			return 0;
+		}
+		if(position == block.length && !nextBlock()) {
+			return -1;
+		}
+		
+		int n = Math.min(len, block.length - position);
+		System.arraycopy(block, position, b, off, n);
+		position += n;
+		return n;
+	}
+	
+	/**
+	 * Moves on to the next non-empty inflated block, false at the end of the file.
+	 */
+	private boolean nextBlock() throws IOException {
+		do {
+			fill();
+			Future<byte[]> next = blocks.poll();
+			if(next == null) {
+				return false;
+			}
+			
+			try {
+				block = next.get();
+			} catch(InterruptedException e) {
+				throw new IOException("Interrupted while inflating " + file, e);
+			} catch(ExecutionException e) {
+				throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+						: new IOException("Inflating " + file + " failed", e.getCause());
+			}
+			position = 0;
+		} while(block.length == 0);
+		
+		return true;
+	}
+	
+	/**
+	 * Reads compressed blocks and submits them for inflation until <code>readAhead</code> are pending.
+	 */
+	private void fill() throws IOException {
+		while(!compressedEof && blocks.size() < readAhead) {
+			int n = readFully(header, 0, BGZF_HEADER, true);
+			if(n == 0) {
+				compressedEof = true;
+				break;
+			}
+			
+			if((header[0] & 0xff) != 31 || (header[1] & 0xff) != 139 || (header[3] & 4) == 0) {
+				throw new IOException(file + " is not BGZF compressed (at compressed offset " + blockAddress + ")");
+			}
+			
+			int xlen = (header[10] & 0xff) | (header[11] & 0xff) << 8;
+			byte[] extra = new byte[xlen];
+			readFully(extra, 0, xlen, false);
+			
+			// the BC subfield holds the total block size - 1
+			int blockSize = -1;
+			for(int i = 0; i + 4 <= xlen; ) {
+				int slen = (extra[i + 2] & 0xff) | (extra[i + 3] & 0xff) << 8;
+				if(extra[i] == 'B' && extra[i + 1] == 'C' && slen == 2 && i + 6 <= xlen) {
+					blockSize = ((extra[i + 4] & 0xff) | (extra[i + 5] & 0xff) << 8) + 1;
+				}
+				i += 4 + slen;
+			}
+			if(blockSize < 0) {
+				throw new IOException(file + " is not BGZF compressed (no block size at compressed offset " + blockAddress + ")");
+			}
+			
+			final byte[] compressed = new byte[blockSize - BGZF_HEADER - xlen];
+			readFully(compressed, 0, compressed.length, false);
+			final long address = blockAddress;
+			blockAddress += blockSize;
+			
+			blocks.add(inflaters.submit(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws IOException {
+					return inflate(compressed, address);
+				}}));
+		}
+	}
+	
+	/**
+	 * Inflates one block's deflate data followed by its CRC32 and uncompressed size.
+	 */
+	private byte[] inflate(byte[] compressed, long address) throws IOException {
+		int cdataLength = compressed.length - BGZF_FOOTER;
+		int crc = littleEndianInt(compressed, cdataLength);
+		int size = littleEndianInt(compressed, cdataLength + 4);
+		
+		byte[] uncompressed = new byte[size];
+		Inflater inflater = INFLATER.get();
+		inflater.reset();
+		inflater.setInput(compressed, 0, cdataLength);
+		try {
+			int n = 0;
+			while(n < size && !inflater.finished()) {
+				int inflated = inflater.inflate(uncompressed, n, size - n);
+				if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				n += inflated;
+			}
+			if(n != size) {
+				throw new IOException("Truncated BGZF block in " + file + " at compressed offset " + address);
+			}
+		} catch(DataFormatException e) {
+			throw new IOException("Corrupt BGZF block in " + file + " at compressed offset " + address, e);
+		}
+		
+		CRC32 checksum = new CRC32();
+		checksum.update(uncompressed, 0, size);
+		if((int) checksum.getValue() != crc) {
+			throw new IOException("CRC mismatch in BGZF block of " + file + " at compressed offset " + address);
+		}
+		
+		return uncompressed;
+	}
+	
+	private int readFully(byte[] b, int off, int len, boolean eofAllowed) throws IOException {
+		int n = 0;
+		while(n < len) {
+			int r = in.read(b, off + n, len - n);
+			if(r < 0) {
+				if(n == 0 && eofAllowed) {
+					return 0;
+				}
+				throw new EOFException("Truncated BGZF block in " + file + " at compressed offset " + blockAddress);
+			}
+			n += r;
+		}
+		return n;
+	}
+	
+	private static int littleEndianInt(byte[] b, int i) {
+		return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | (b[i + 3] & 0xff) << 24;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		for(Future<byte[]> pending : blocks) {
+			pending.cancel(false);
+		}
+		blocks.clear();
+		in.close();
+	}
+}
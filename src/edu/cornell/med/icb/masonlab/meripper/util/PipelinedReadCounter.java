@@ -0,0 +1,222 @@
+package edu.cornell.med.icb.masonlab.meripper.util;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SamReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Runs a ReadCounter's task as a two-stage pipeline. A decoder thread inflates and decodes the
+ * counter's file (or chromosomes) into ReadBatches, handing them to the calling thread over a
+ * bounded queue; the calling thread counts them. Decoding thus overlaps with counting, and the
+ * <code>queueDepth + 1</code> batches are recycled, so the pipeline allocates no batches once running.
+ * <p>
+ * The decoder is a dedicated thread rather than a pool task: queued behind counting tasks that are
+ * waiting on its batches, it could deadlock a fixed-size pool.
+ * <p>
+ * Given an inflater pool, the decoder skips htsjdk and reads the whole (BAM) file through a
+ * ParallelBgzfInputStream and a BamReadDecoder, so the inflation itself is spread over that pool.
+ */
+public class PipelinedReadCounter implements Callable<Integer> {
+	// marks the end of the decoded batches
+	private static final ReadBatch END = new ReadBatch(0);
+	
+	private final ReadCounter counter;
+	private final int batchSize;
+	private final int queueDepth;
+	private final ExecutorService inflaters;
+	private final int readAhead;
+	
+	private BlockingQueue<ReadBatch> decoded;
+	private BlockingQueue<ReadBatch> free;
+	private volatile Throwable decodeError;
+	private volatile long decodeNanos, decodeWaitNanos;
+	private volatile int decodedReads;
+	
+	public PipelinedReadCounter(ReadCounter counter, int batchSize, int queueDepth) {
+		this(counter, batchSize, queueDepth, null, 0);
+	}
+	
+	/**
+	 * Decodes with parallel BGZF inflation on <code>inflaters</code>, keeping up to <code>readAhead</code>
+	 * compressed blocks in flight. The counter must cover the whole file (no chromosome list).
+	 */
+	public PipelinedReadCounter(ReadCounter counter, int batchSize, int queueDepth, ExecutorService inflaters, int readAhead) {
+		if(inflaters != null && counter.chrs != null) {
+			throw new IllegalArgumentException("Parallel inflation reads whole files, not chromosomes");
+		}
+		
+		this.counter = counter;
+		this.batchSize = batchSize;
+		this.queueDepth = queueDepth;
+		this.inflaters = inflaters;
+		this.readAhead = readAhead;
+	}
+	
+	@Override
+	public Integer call() throws Exception {
+		decoded = new ArrayBlockingQueue<ReadBatch>(queueDepth);
+		free = new ArrayBlockingQueue<ReadBatch>(queueDepth + 1);
+		for(int i = 0; i <= queueDepth; i++) {
+			free.add(new ReadBatch(batchSize));
+		}
+		
+		Thread decoder = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				decode();
+			}}, "decoder " + counter.file.getName());
+		decoder.setDaemon(true);
+		decoder.start();
+		
+		int count = 0;
+		long countNanos = 0, countWaitNanos = 0;
+		try {
+			while(true) {
+				long time0 = System.nanoTime();
+				ReadBatch batch = decoded.take();
+				long time1 = System.nanoTime();
+				countWaitNanos += time1 - time0;
+				if(batch == END) {
+					break;
+				}
+				
+				count += counter.count(batch);
+				countNanos += System.nanoTime() - time1;
+				free.put(batch);
+			}
+		} finally {
+			// only still running if counting failed
+			decoder.interrupt();
+			counter.finishProgress();
+		}
+		decoder.join();
+		
+		if(decodeError instanceof IOException) {
+			throw (IOException) decodeError;
+		} else if(decodeError != null) {
+			throw new RuntimeException("Decoding " + counter.file + " failed", decodeError);
+		}
+		
+		System.err.println("Pipeline " + counter.file + (counter.chrs == null ? "" : " " + counter.chrs)
+				+ ": decoded " + decodedReads + " reads in " + seconds(decodeNanos) + " s (" + rate(decodedReads, decodeNanos)
+				+ " reads/s, " + seconds(decodeWaitNanos) + " s waiting for free batches), counted " + count + " in "
+				+ seconds(countNanos) + " s (" + rate(count, countNanos) + " reads/s, " + seconds(countWaitNanos)
+				+ " s waiting for decoded batches)");
+		return count;
+	}
+	
+	private void decode() {
+		long time0 = System.nanoTime();
+		try {
+			if(inflaters != null) {
+				decodeBgzf();
+			} else {
+				decodeRecords();
+			}
+		} catch(InterruptedException e) {
+			// counting gave up, nobody is left to take END
+			return;
+		} catch(Throwable t) {
+			decodeError = t;
+		}
+		
+		decodeNanos = System.nanoTime() - time0 - decodeWaitNanos;
+		try {
+			decoded.put(END);
+		} catch(InterruptedException e) {
+			// counting gave up
+		}
+	}
+	
+	/**
+	 * Decodes through htsjdk, one SAMRecord at a time.
+	 */
+	private void decodeRecords() throws IOException, InterruptedException {
+		long wait = 0;
+		int reads = 0;
+		SamReader reader = ReadCounter.open(counter.file);
+		try {
+			long time1 = System.nanoTime();
+			ReadBatch batch = free.take();
+			wait += System.nanoTime() - time1;
+			
+			for(int c = 0; c < (counter.chrs == null ? 1 : counter.chrs.size()); c++) {
+				SAMRecordIterator iterator = counter.chrs == null ? reader.iterator() : reader.query(counter.chrs.get(c), 0, 0, false);
+				try {
+					while(iterator.hasNext()) {
+						SAMRecord record = iterator.next();
+						if(record.getReadUnmappedFlag()) {
+							continue;
+						}
+						
+						batch.add(record);
+						reads++;
+						if(batch.isFull()) {
+							time1 = System.nanoTime();
+							decoded.put(batch);
+							batch = free.take();
+							batch.clear();
+							wait += System.nanoTime() - time1;
+						}
+					}
+				} finally {
+					iterator.close();
+				}
+			}
+			
+			if(batch.size() > 0) {
+				decoded.put(batch);
+			}
+		} finally {
+			reader.close();
+			decodedReads = reads;
+			decodeWaitNanos = wait;
+		}
+	}
+	
+	/**
+	 * Decodes the whole file straight from its parallel-inflated bytes.
+	 */
+	private void decodeBgzf() throws IOException, InterruptedException {
+		long wait = 0;
+		int reads = 0;
+		InputStream in = new ParallelBgzfInputStream(counter.file, inflaters, readAhead);
+		try {
+			BamReadDecoder decoder = new BamReadDecoder(in);
+			while(true) {
+				long time1 = System.nanoTime();
+				ReadBatch batch = free.take();
+				batch.clear();
+				wait += System.nanoTime() - time1;
+				
+				if(decoder.fill(batch) == 0) {
+					break;
+				}
+				reads += batch.size();
+				
+				time1 = System.nanoTime();
+				decoded.put(batch);
+				wait += System.nanoTime() - time1;
+			}
+		} finally {
+			in.close();
+			decodedReads = reads;
+			decodeWaitNanos = wait;
+		}
+	}
+	
+	private static String seconds(long nanos) {
+		return String.format("%.2f", nanos / 1e9);
+	}
+	
+	private static long rate(int reads, long nanos) {
+		return nanos > 0 ? Math.round(reads / (nanos / 1e9)) : 0;
+	}
+}
@@ -0,0 +1,97 @@
+package edu.cornell.med.icb.masonlab.meripper.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Logs the progress of the files being counted to stderr every <code>interval</code> seconds, one
+ * line per file still counting: reads so far, reads/s over the last interval, the positions its
+ * tasks have reached and, when the index gave the number of reads to expect, the percentage done
+ * and an ETA at the average rate so far. Runs on a daemon thread between start() and stop().
+ */
+public class ProgressReporter {
+	private final int interval;
+	private final List<CountProgress> files = new ArrayList<CountProgress>();
+	private final List<Long> lastReads = new ArrayList<Long>();
+	private Thread thread;
+	
+	/**
+	 * Reports every <code>interval</code> seconds, never if it is 0.
+	 */
+	public ProgressReporter(int interval) {
+		this.interval = interval;
+	}
+	
+	public synchronized void add(CountProgress progress) {
+		files.add(progress);
+		lastReads.add(0L);
+	}
+	
+	public synchronized void start() {
+		if(interval <= 0 || thread != null) {
+			return;
+		}
+		
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while(true) {
+						Thread.sleep(interval * 1000L);
+						report();
+					}
+				} catch(InterruptedException e) {
+					// stopped
+				}
+			}}, "progress");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Stops reporting and forgets the files reported on so far.
+	 */
+	public synchronized void stop() {
+		if(thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+		files.clear();
+		lastReads.clear();
+	}
+	
+	private synchronized void report() {
+		for(int i = 0; i < files.size(); i++) {
+			CountProgress progress = files.get(i);
+			if(progress.isDone()) {
+				continue;
+			}
+			
+			long reads = progress.reads();
+			long recent = reads - lastReads.get(i);
+			lastReads.set(i, reads);
+			
+			StringBuilder line = new StringBuilder("Progress ").append(progress.file().getName()).append(": ");
+			if(progress.startNanos() == 0) {
+				System.err.println(line.append("waiting").toString());
+				continue;
+			}
+			
+			line.append(reads).append(" reads, ").append(recent / interval).append(" reads/s");
+			String positions = progress.positions();
+			if(positions.length() > 0) {
+				line.append(", at ").append(positions);
+			}
+			
+			long expected = progress.expected();
+			if(expected > 0) {
+				double seconds = (System.nanoTime() - progress.startNanos()) / 1e9;
+				line.append(String.format(", %.1f%% of %d", 100.0 * reads / expected, expected));
+				if(reads > 0 && reads < expected) {
+					line.append(", ETA ").append(Math.round((expected - reads) * seconds / reads)).append(" s");
+				}
+			}
+			System.err.println(line.toString());
+		}
+	}
+}
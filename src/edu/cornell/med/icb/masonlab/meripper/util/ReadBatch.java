@@ -0,0 +1,83 @@
+package edu.cornell.med.icb.masonlab.meripper.util;
+
+import htsjdk.samtools.AlignmentBlock;
+import htsjdk.samtools.SAMRecord;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A reusable batch of decoded, mapped reads, reduced to what the counters need: the reference
+ * name and the alignment blocks (1-based reference start, length) of each read. Blocks are stored
+ * flat, read i owning blocks firstBlock(i) until firstBlock(i + 1).
+ */
+public class ReadBatch {
+	private final String[] chrs;
+	private final int[] blockOffsets;
+	private int[] blockStarts;
+	private int[] blockLengths;
+	private int size;
+	
+	public ReadBatch(int capacity) {
+		this.chrs = new String[capacity];
+		this.blockOffsets = new int[capacity + 1];
+		this.blockStarts = new int[2 * capacity];
+		this.blockLengths = new int[2 * capacity];
+		this.size = 0;
+	}
+	
+	public void clear() {
+		size = 0;
+	}
+	
+	public boolean isFull() {
+		return size == chrs.length;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Starts the next read; its blocks follow through {@link #addBlock(int, int)}.
+	 */
+	public void addRead(String chr) {
+		chrs[size] = chr;
+		blockOffsets[size + 1] = blockOffsets[size];
+		size++;
+	}
+	
+	public void addBlock(int referenceStart, int length) {
+		int b = blockOffsets[size]++;
+		if(b == blockStarts.length) {
+			blockStarts = Arrays.copyOf(blockStarts, 2 * b);
+			blockLengths = Arrays.copyOf(blockLengths, 2 * b);
+		}
+		blockStarts[b] = referenceStart;
+		blockLengths[b] = length;
+	}
+	
+	public void add(SAMRecord record) {
+		addRead(record.getReferenceName());
+		List<AlignmentBlock> blocks = record.getAlignmentBlocks();
+		for(int b = 0; b < blocks.size(); b++) {
+			addBlock(blocks.get(b).getReferenceStart(), blocks.get(b).getLength());
+		}
+	}
+	
+	public String chr(int i) {
+		return chrs[i];
+	}
+	
+	public int firstBlock(int i) {
+		return blockOffsets[i];
+	}
+	
+	public int[] blockStarts() {
+		return blockStarts;
+	}
+	
+	public int[] blockLengths() {
+		return blockLengths;
+	}
+}
@@ -4,62 +4,169 @@ import htsjdk.samtools.AlignmentBlock;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
 
-import java.util.HashSet;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.Callable;
 
 public class ReadCounter implements Callable<Integer> {
-	protected final SamReader reader;
-	protected final Map<String, Map<Integer, Integer>> counters;
-	protected final SAMRecordIterator iterator;
+	protected final File file;
+	protected final List<String> chrs;
+	protected final Map<String, WindowCounts> counters;
 	protected final int WINDOW_SIZE;
 	protected final int STEP_SIZE;
-
 	
-	public ReadCounter(final SamReader reader, Map<String, Map<Integer, Integer>> counters, int window_size, int step_size) {
+	// one record's alignment blocks, reused across records
+	private int[] blockStarts = new int[16];
+	private int[] blockLengths = new int[16];
+	
+	private CountProgress.Task progress = null;
+
+	/**
+	 * Counts the reads of <code>file</code>. When <code>chrs</code> is null the whole file is scanned
+	 * sequentially, otherwise only the listed chromosomes are read through the BAM index. Each task
+	 * opens (and closes) its own reader, so tasks over disjoint chromosomes can run concurrently.
+	 */
+	public ReadCounter(final File file, List<String> chrs, Map<String, WindowCounts> counters, int window_size, int step_size) {
+		this.file = file;
+		this.chrs = chrs;
 		this.counters = counters;
-		this.reader = reader;
-		this.iterator = reader.iterator();
 		this.WINDOW_SIZE = window_size;
 		this.STEP_SIZE = step_size;
 	}
+	
+	/**
+	 * Publishes this counter's progress as a task of <code>progress</code>.
+	 */
+	public void setProgress(CountProgress progress) {
+		this.progress = progress.task();
+	}
+	
+	/**
+	 * Marks this counter's share of its file's progress as finished.
+	 */
+	public void finishProgress() {
+		if(progress != null) {
+			progress.finish();
+		}
+	}
+	
+	public static SamReader open(File file) {
+		return SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(file);
+	}
 
 	@Override
-	public Integer call() {
+	public Integer call() throws IOException {
 		int count = 0;
 		
-		Set<Integer> windows = new HashSet<Integer>();
-		while(iterator.hasNext()) {
-			SAMRecord record = iterator.next();
-			String chr = record.getReferenceName();
-			if(!record.getReadUnmappedFlag() && counters.containsKey(chr)) {
-				for(AlignmentBlock block : record.getAlignmentBlocks()) {
-					int start = Math.max(0, ((block.getReferenceStart() - 1) - (WINDOW_SIZE - STEP_SIZE)) / STEP_SIZE);
-					int end = (block.getReferenceStart() - 1 + block.getLength()) / STEP_SIZE;
-					
-					for(int i = start; i <= end; i++) {
-						windows.add(i * STEP_SIZE);
-					}
+		SamReader reader = open(file);
+		try {
+			if(chrs == null) {
+				count += count(reader.iterator());
+			} else {
+				for(String chr : chrs) {
+					count += count(reader.query(chr, 0, 0, false));
 				}
-				
-				// now increment the counters
-				// this prevents a read that's spliced twice onto the same exon from being double counted on that exon
-				for(int window : windows) {
-					if(counters.get(chr).containsKey(window)) {
-						counters.get(chr).put(window, counters.get(chr).get(window) + 1);
-					} else {
-						counters.get(chr).put(window,  1);
+			}
+		} finally {
+			reader.close();
+			finishProgress();
+		}
+		
+		return count;
+	}
+	
+	protected int count(SAMRecordIterator iterator) {
+		int count = 0;
+		
+		try {
+			while(iterator.hasNext()) {
+				SAMRecord record = iterator.next();
+				WindowCounts chr_counters = counters.get(record.getReferenceName());
+				if(!record.getReadUnmappedFlag() && chr_counters != null) {
+					count(record, chr_counters);
+					count++;
+					
+					if(progress != null && count % CountProgress.FLUSH == 0) {
+						progress.update(CountProgress.FLUSH, record.getReferenceName(), record.getAlignmentStart());
 					}
 				}
-				
-				windows.clear();
-				
+			}
+		} finally {
+			iterator.close();
+		}
+		
+		if(progress != null) {
+			progress.update(count % CountProgress.FLUSH, null, 0);
+		}
+		return count;
+	}
+	
+	/**
+	 * Counts every read of <code>batch</code> on a counted chromosome, returning how many there were.
+	 */
+	public int count(ReadBatch batch) {
+		int count = 0;
+		for(int i = 0; i < batch.size(); i++) {
+			WindowCounts chr_counters = counters.get(batch.chr(i));
+			if(chr_counters != null) {
+				count(batch.chr(i), batch.blockStarts(), batch.blockLengths(), batch.firstBlock(i), batch.firstBlock(i + 1), chr_counters);
 				count++;
 			}
 		}
 		
+		if(progress != null && batch.size() > 0) {
+			int last = batch.size() - 1;
+			progress.update(count, batch.chr(last), batch.blockStarts()[batch.firstBlock(last)]);
+		}
 		return count;
 	}
-}
\ No newline at end of file
+	
+	protected void count(SAMRecord record, WindowCounts chr_counters) {
+		List<AlignmentBlock> blocks = record.getAlignmentBlocks();
+		if(blocks.size() > blockStarts.length) {
+			blockStarts = new int[blocks.size()];
+			blockLengths = new int[blocks.size()];
+		}
+		for(int b = 0; b < blocks.size(); b++) {
+			blockStarts[b] = blocks.get(b).getReferenceStart();
+			blockLengths[b] = blocks.get(b).getLength();
+		}
+		
+		count(record.getReferenceName(), blockStarts, blockLengths, 0, blocks.size(), chr_counters);
+	}
+	
+	/**
+	 * Counts one read, given as its alignment blocks <code>from</code> until <code>to</code> (1-based
+	 * reference starts and lengths), once in every window any of the blocks falls in. Allocates nothing.
+	 */
+	protected void count(String chr, int[] starts, int[] lengths, int from, int to, WindowCounts chr_counters) {
+		int last = chr_counters.size() - 1;
+		
+		// alignment blocks are sorted, so their window ranges only need merging with the previous one
+		// this prevents a read that's spliced twice onto the same exon from being double counted on that exon
+		int range_start = -1, range_end = -1;
+		for(int b = from; b < to; b++) {
+			int start = Math.max(0, ((starts[b] - 1) - (WINDOW_SIZE - STEP_SIZE)) / STEP_SIZE);
+			int end = Math.min(last, (starts[b] - 1 + lengths[b]) / STEP_SIZE);
+			
+			if(range_end >= 0 && start <= range_end) {
+				range_end = Math.max(range_end, end);
+			} else {
+				if(range_start >= 0) {
+					chr_counters.incrementRange(range_start, range_end);
+				}
+				range_start = start;
+				range_end = end;
+			}
+		}
+		
+		if(range_start >= 0) {
+			chr_counters.incrementRange(range_start, range_end);
+		}
+	}
+}
@@ -1,83 +1,56 @@
 package edu.cornell.med.icb.masonlab.meripper.util;
 
-import htsjdk.samtools.AlignmentBlock;
-import htsjdk.samtools.SAMRecord;
-import htsjdk.samtools.SAMRecordIterator;
-import htsjdk.samtools.SamReader;
-import htsjdk.samtools.util.IntervalTree;
-
-import java.util.HashSet;
-import java.util.Iterator;
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.Callable;
 
-public class ReadCounterJunctions implements Callable<Integer> {
-	protected final SamReader reader;
-	protected final Map<String, Map<Integer, Integer>> counters;
-	protected final SAMRecordIterator iterator;
-	protected final int WINDOW_SIZE;
-	protected final int STEP_SIZE;
+public class ReadCounterJunctions extends ReadCounter {
+	protected final Map<String, JunctionIndex> junctions;
+	protected final Map<String, int[]> junction_counters;
 	
-	protected final Map<String, IntervalTree<Double>> junctions;
-	protected final Map<String, Map<IntervalTree.Node<Double>, Integer>> junction_counters;
+	// ids of the junction flanks overlapped by the current read, reused across reads
+	private int[] overlaps = new int[16];
 	
-	public ReadCounterJunctions(final SamReader reader, Map<String, Map<Integer, Integer>> counters, Map<String, IntervalTree<Double>> junctions,
-			Map<String, Map<IntervalTree.Node<Double>, Integer>> junction_counters, int window_size, int step_size) {
-		this.counters = counters;
-		this.reader = reader;
-		this.iterator = reader.iterator();
+	public ReadCounterJunctions(final File file, List<String> chrs, Map<String, WindowCounts> counters, Map<String, JunctionIndex> junctions,
+			Map<String, int[]> junction_counters, int window_size, int step_size) {
+		super(file, chrs, counters, window_size, step_size);
 		this.junctions = junctions;
 		this.junction_counters = junction_counters;
-		this.WINDOW_SIZE = window_size;
-		this.STEP_SIZE = step_size;
 	}
 
 	@Override
-	public Integer call() {
-		int count = 0;
+	protected void count(String chr, int[] starts, int[] lengths, int from, int to, WindowCounts chr_counters) {
+		super.count(chr, starts, lengths, from, to, chr_counters);
 		
-		while(iterator.hasNext()) {
-			SAMRecord record = iterator.next();
-			if(!record.getReadUnmappedFlag() && counters.containsKey(record.getReferenceName())) {
-				String chr = record.getReferenceName();
-				Set<Integer> windows = new HashSet<Integer>();
-				Set<IntervalTree.Node<Double>> overlaps = new HashSet<IntervalTree.Node<Double>>();
-				for(AlignmentBlock block : record.getAlignmentBlocks()) {
-					int start = Math.max(0, ((block.getReferenceStart() - 1) - (WINDOW_SIZE - STEP_SIZE)) / STEP_SIZE);
-					int end = (block.getReferenceStart() - 1 + block.getLength()) / STEP_SIZE;
-					
-					for(int i = start; i <= end; i++) {
-						windows.add(i * STEP_SIZE);
-					}
-					
-					for(Iterator<IntervalTree.Node<Double>> i = junctions.get(chr).overlappers(
-								block.getReferenceStart() - 1, 
-								block.getReferenceStart() - 1 + block.getLength() - 1);
-							i.hasNext();) {
-						overlaps.add(i.next());
+		JunctionIndex chr_junctions = junctions.get(chr);
+		int num_overlaps = 0;
+		for(int b = from; b < to; b++) {
+			int block_start = starts[b] - 1;
+			int block_end = starts[b] - 1 + lengths[b] - 1;
+			for(int id = chr_junctions.firstCandidate(block_start), to_id = chr_junctions.lastCandidate(block_end); id < to_id; id++) {
+				if(chr_junctions.overlaps(id, block_start, block_end) && !contains(overlaps, num_overlaps, id)) {
+					if(num_overlaps == overlaps.length) {
+						overlaps = Arrays.copyOf(overlaps, 2 * num_overlaps);
 					}
+					overlaps[num_overlaps++] = id;
 				}
-				
-				// now increment the counters
-				// this prevents a read that's spliced twice onto the same exon from being double counted on that exon
-				for(int window : windows) {
-					if(counters.get(chr).containsKey(window)) {
-						counters.get(chr).put(window, counters.get(chr).get(window) + 1);
-					} else {
-						counters.get(chr).put(window,  1);
-					}
-				}
-				
-				for(IntervalTree.Node<Double> node : overlaps) {
-					junction_counters.get(chr).put(node,
-							junction_counters.get(chr).get(node) + 1);
-				}
-				
-				count++;
 			}
 		}
 		
-		return count;
+		// a flank overlapped by several blocks of the same read is counted once
+		int[] chr_junction_counters = junction_counters.get(chr);
+		for(int i = 0; i < num_overlaps; i++) {
+			chr_junction_counters[overlaps[i]]++;
+		}
+	}
+	
+	private static boolean contains(int[] ids, int n, int id) {
+		for(int i = 0; i < n; i++) {
+			if(ids[i] == id) {
+				return true;
+			}
+		}
+		return false;
 	}
-}
\ No newline at end of file
+}
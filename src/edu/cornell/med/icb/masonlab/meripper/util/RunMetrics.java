@@ -0,0 +1,287 @@
+package edu.cornell.med.icb.masonlab.meripper.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and timers of one run, written as a JSON report. A run has named parameters and a list
+ * of stages in the order they were first used; each stage has a total time (a stage started several
+ * times, e.g. once per --windows configuration, adds up), counters, the heap in use when it last
+ * stopped and the durations of the pool tasks run through timed(). The report adds the JVM's heap
+ * high-water mark and garbage collection totals. The high-water mark is the most heap in use at
+ * once as far as seen: every stage stop and the report itself sample it, and once sampleHeap() is
+ * called a daemon thread does every HEAP_SAMPLE_MILLIS, so a spike shorter than that can go unseen.
+ * (The heap pools' own peaks are reached at different times, and their sum overstates it.)
+ * <p>
+ * Recording is cheap, so a run always records and only writes the report when asked to; only a run
+ * that will write it should start the sampler.
+ */
+public class RunMetrics {
+	private static final long HEAP_SAMPLE_MILLIS = 5;
+	private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+	
+	private final String tool;
+	private final long start = System.nanoTime();
+	private final long startMillis = System.currentTimeMillis();
+	private final Map<String, Object> parameters = new LinkedHashMap<String, Object>();
+	private final Map<String, Stage> stages = new LinkedHashMap<String, Stage>();
+	private final AtomicLong heapPeak = new AtomicLong();
+	private Thread sampler = null;
+	
+	public RunMetrics(String tool) {
+		this.tool = tool;
+	}
+	
+	/**
+	 * Starts sampling the heap in use every HEAP_SAMPLE_MILLIS for the report's high-water mark.
+	 */
+	public synchronized void sampleHeap() {
+		if(sampler != null) {
+			return;
+		}
+		
+		sampler = new Thread("RunMetrics heap sampler") {
+			@Override
+			public void run() {
+				while(true) {
+					heapSample(MEMORY.getHeapMemoryUsage().getUsed());
+					try {
+						Thread.sleep(HEAP_SAMPLE_MILLIS);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}};
+		sampler.setDaemon(true);
+		sampler.start();
+	}
+	
+	private void heapSample(long used) {
+		long peak = heapPeak.get();
+		while(used > peak && !heapPeak.compareAndSet(peak, used)) {
+			peak = heapPeak.get();
+		}
+	}
+	
+	public synchronized void parameter(String name, Object value) {
+		parameters.put(name, value);
+	}
+	
+	/**
+	 * The stage called <code>name</code>, created on first use.
+	 */
+	public synchronized Stage stage(String name) {
+		Stage stage = stages.get(name);
+		if(stage == null) {
+			stage = new Stage(name);
+			stages.put(name, stage);
+		}
+		return stage;
+	}
+	
+	public class Stage {
+		private final String name;
+		private final Map<String, Object> counters = new LinkedHashMap<String, Object>();
+		private final List<Task> tasks = new ArrayList<Task>();
+		private long nanos = 0;
+		private long started = -1;
+		private long heapUsed = -1;
+		
+		private Stage(String name) {
+			this.name = name;
+		}
+		
+		public synchronized Stage start() {
+			started = System.nanoTime();
+			return this;
+		}
+		
+		public synchronized void stop() {
+			if(started >= 0) {
+				nanos += System.nanoTime() - started;
+				started = -1;
+			}
+			heapUsed = MEMORY.getHeapMemoryUsage().getUsed();
+			heapSample(heapUsed);
+		}
+		
+		public synchronized long nanos() {
+			return nanos;
+		}
+		
+		public synchronized void set(String counter, Object value) {
+			counters.put(counter, value);
+		}
+		
+		public synchronized void add(String counter, long n) {
+			Object value = counters.get(counter);
+			counters.put(counter, value instanceof Long ? (Long) value + n : n);
+		}
+		
+		/**
+		 * Records this stage's rate of <code>counter</code> per second as <code>counter</code>_per_second.
+		 */
+		public synchronized void rate(String counter) {
+			Object value = counters.get(counter);
+			if(value instanceof Number && nanos > 0) {
+				counters.put(counter + "_per_second", ((Number) value).doubleValue() / (nanos / 1e9));
+			}
+		}
+		
+		/**
+		 * <code>task</code>, recording its duration and thread under <code>name</code> when it runs.
+		 */
+		public <T> Callable<T> timed(final String name, final Callable<T> task) {
+			return new Callable<T>() {
+				@Override
+				public T call() throws Exception {
+					long time0 = System.nanoTime();
+					try {
+						return task.call();
+					} finally {
+						long time1 = System.nanoTime();
+						synchronized(Stage.this) {
+							tasks.add(new Task(name, Thread.currentThread().getName(), time0 - start, time1 - time0));
+						}
+					}
+				}};
+		}
+	}
+	
+	private static class Task {
+		final String name;
+		final String thread;
+		final long startNanos;
+		final long nanos;
+		
+		Task(String name, String thread, long startNanos, long nanos) {
+			this.name = name;
+			this.thread = thread;
+			this.startNanos = startNanos;
+			this.nanos = nanos;
+		}
+	}
+	
+	public synchronized void write(File file) throws IOException {
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			out.write(toJson());
+		} finally {
+			out.close();
+		}
+	}
+	
+	public synchronized String toJson() {
+		StringBuilder json = new StringBuilder();
+		SimpleDateFormat iso = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ROOT);
+		iso.setTimeZone(TimeZone.getTimeZone("UTC"));
+		
+		json.append("{\n  \"tool\": ").append(quote(tool));
+		json.append(",\n  \"started\": ").append(quote(iso.format(new Date(startMillis))));
+		json.append(",\n  \"wall_ms\": ").append(millis(System.nanoTime() - start));
+		json.append(",\n  \"parameters\": ");
+		object(json, parameters);
+		
+		heapSample(MEMORY.getHeapMemoryUsage().getUsed());
+		long gcCount = 0, gcMillis = 0;
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			gcCount += Math.max(0, gc.getCollectionCount());
+			gcMillis += Math.max(0, gc.getCollectionTime());
+		}
+		Map<String, Object> memory = new LinkedHashMap<String, Object>();
+		memory.put("heap_max_bytes", Runtime.getRuntime().maxMemory());
+		memory.put("heap_peak_used_bytes", heapPeak.get());
+		memory.put("gc_count", gcCount);
+		memory.put("gc_ms", gcMillis);
+		json.append(",\n  \"memory\": ");
+		object(json, memory);
+		
+		json.append(",\n  \"stages\": [");
+		boolean firstStage = true;
+		for(Stage stage : stages.values()) {
+			synchronized(stage) {
+				json.append(firstStage ? "\n" : ",\n");
+				firstStage = false;
+				json.append("    {\"name\": ").append(quote(stage.name));
+				json.append(", \"ms\": ").append(millis(stage.nanos));
+				if(stage.heapUsed >= 0) {
+					json.append(", \"heap_used_bytes\": ").append(stage.heapUsed);
+				}
+				json.append(",\n     \"counters\": ");
+				object(json, stage.counters);
+				json.append(",\n     \"tasks\": [");
+				for(int i = 0; i < stage.tasks.size(); i++) {
+					Task task = stage.tasks.get(i);
+					json.append(i > 0 ? ",\n       " : "\n       ");
+					json.append("{\"name\": ").append(quote(task.name));
+					json.append(", \"thread\": ").append(quote(task.thread));
+					json.append(", \"start_ms\": ").append(millis(task.startNanos));
+					json.append(", \"ms\": ").append(millis(task.nanos)).append('}');
+				}
+				json.append(stage.tasks.isEmpty() ? "]}" : "\n     ]}");
+			}
+		}
+		json.append(firstStage ? "]\n}\n" : "\n  ]\n}\n");
+		
+		return json.toString();
+	}
+	
+	private static void object(StringBuilder json, Map<String, Object> values) {
+		json.append('{');
+		boolean first = true;
+		for(Map.Entry<String, Object> entry : values.entrySet()) {
+			json.append(first ? "" : ", ");
+			first = false;
+			json.append(quote(entry.getKey())).append(": ").append(value(entry.getValue()));
+		}
+		json.append('}');
+	}
+	
+	private static String value(Object value) {
+		if(value == null) {
+			return "null";
+		} else if(value instanceof Double || value instanceof Float) {
+			double d = ((Number) value).doubleValue();
+			// JSON has no NaN or Infinity
+			return Double.isNaN(d) || Double.isInfinite(d) ? "null" : Double.toString(d);
+		} else if(value instanceof Number || value instanceof Boolean) {
+			return value.toString();
+		}
+		return quote(value.toString());
+	}
+	
+	private static String millis(long nanos) {
+		return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+	}
+	
+	private static String quote(String s) {
+		StringBuilder quoted = new StringBuilder(s.length() + 2).append('"');
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if(c == '"' || c == '\\') {
+				quoted.append('\\').append(c);
+			} else if(c < 0x20) {
+				quoted.append(String.format("\\u%04x", (int) c));
+			} else {
+				quoted.append(c);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+}
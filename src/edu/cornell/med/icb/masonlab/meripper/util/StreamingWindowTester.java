@@ -0,0 +1,322 @@
+package edu.cornell.med.icb.masonlab.meripper.util;
+
+import htsjdk.samtools.AlignmentBlock;
+import htsjdk.samtools.BAMIndex;
+import htsjdk.samtools.BAMIndexMetaData;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Single-pass window counting and testing over coordinate-sorted BAMs. The MeRIP and control
+ * files are merge-iterated together; a window is finalized (tested and handed to the listener)
+ * as soon as every iterator has moved past its first possible read, so only a sliding window's
+ * worth of counts is ever resident, regardless of genome size or number of inputs.
+ */
+public class StreamingWindowTester {
+	/**
+	 * Receives the tested windows of each chromosome in ascending order.
+	 */
+	public interface Listener {
+		void window(String chr, int start, double pvalue);
+		void endChromosome(String chr);
+	}
+	
+	// same retention threshold as FishersTestThread
+	private static final double RETAIN = 0.05;
+	
+	private final File[] files;
+	private final boolean[] isSample;
+	private final Map<String, Integer> genomeSizes;
+	private final int WINDOW_SIZE;
+	private final int STEP_SIZE;
+	private int sampleReadCounts = -1;
+	private int controlReadCounts = -1;
+	private final int pvalueCacheSize;
+	private final double threshold;
+	private FisherPValueCache pvalues;
+	
+	// ring buffers of pending window counts, window w lives in slot w & mask
+	private int[] sampleRing = new int[1024];
+	private int[] controlRing = new int[1024];
+	private int mask = 1023;
+	private int base, top, last;
+	private String chr;
+	
+	public StreamingWindowTester(File[] sampleFiles, File[] controlFiles, Map<String, Integer> genomeSizes,
+			int window_size, int step_size, int pvalueCacheSize, double threshold) {
+		this.files = new File[sampleFiles.length + controlFiles.length];
+		this.isSample = new boolean[files.length];
+		for(int i = 0; i < files.length; i++) {
+			isSample[i] = i < sampleFiles.length;
+			files[i] = isSample[i] ? sampleFiles[i] : controlFiles[i - sampleFiles.length];
+		}
+		this.genomeSizes = genomeSizes;
+		this.WINDOW_SIZE = window_size;
+		this.STEP_SIZE = step_size;
+		this.pvalueCacheSize = pvalueCacheSize;
+		this.threshold = threshold;
+	}
+	
+	public int getSampleReadCounts() {
+		return sampleReadCounts;
+	}
+	
+	public int getControlReadCounts() {
+		return controlReadCounts;
+	}
+	
+	public FisherPValueCache getPValueCache() {
+		return pvalues;
+	}
+	
+	/**
+	 * Library totals are needed before the first window can be tested. They are taken from the
+	 * BAM index metadata when every file has one, otherwise each file is scanned once.
+	 */
+	public void countReads() throws IOException {
+		sampleReadCounts = 0;
+		controlReadCounts = 0;
+		for(int i = 0; i < files.length; i++) {
+			int count = countReads(files[i]);
+			System.err.println("Read " + count + " from " + files[i]);
+			if(isSample[i]) {
+				sampleReadCounts += count;
+			} else {
+				controlReadCounts += count;
+			}
+		}
+		
+		// shared by every pass over the inputs
+		pvalues = new FisherPValueCache(sampleReadCounts, controlReadCounts, pvalueCacheSize, threshold);
+	}
+	
+	private int countReads(File file) throws IOException {
+		SamReader reader = ReadCounter.open(file);
+		try {
+			List<SAMSequenceRecord> sequences = reader.getFileHeader().getSequenceDictionary().getSequences();
+			if(reader.hasIndex() && reader.indexing().hasBrowseableIndex()) {
+				BAMIndex index = reader.indexing().getIndex();
+				long count = 0;
+				boolean complete = true;
+				for(int i = 0; i < sequences.size() && complete; i++) {
+					if(genomeSizes.containsKey(sequences.get(i).getSequenceName())) {
+						BAMIndexMetaData metaData = index.getMetaData(i);
+						if(metaData == null) {
+							complete = false;
+						} else {
+							count += metaData.getAlignedRecordCount();
+						}
+					}
+				}
+				
+				if(complete) {
+					return (int) count;
+				}
+			}
+			
+			int count = 0;
+			SAMRecordIterator iterator = reader.iterator();
+			try {
+				while(iterator.hasNext()) {
+					SAMRecord record = iterator.next();
+					if(!record.getReadUnmappedFlag() && genomeSizes.containsKey(record.getReferenceName())) {
+						count++;
+					}
+				}
+			} finally {
+				iterator.close();
+			}
+			
+			return count;
+		} finally {
+			reader.close();
+		}
+	}
+	
+	/**
+	 * One merged pass over all inputs, reporting every window with p <= 0.05 (and at most the test
+	 * threshold) to <code>listener</code>.
+	 */
+	public void stream(Listener listener) throws IOException {
+		if(sampleReadCounts < 0) {
+			countReads();
+		}
+		
+		SamReader[] readers = new SamReader[files.length];
+		SAMRecordIterator[] iterators = new SAMRecordIterator[files.length];
+		SAMRecord[] heads = new SAMRecord[files.length];
+		try {
+			SAMSequenceDictionary dictionary = null;
+			for(int i = 0; i < files.length; i++) {
+				readers[i] = ReadCounter.open(files[i]);
+				SAMFileHeader header = readers[i].getFileHeader();
+				if(header.getSortOrder() != SAMFileHeader.SortOrder.coordinate) {
+					throw new IllegalArgumentException("Streaming mode requires coordinate-sorted input: " + files[i]);
+				}
+				if(dictionary == null) {
+					dictionary = header.getSequenceDictionary();
+				} else if(!dictionary.isSameDictionary(header.getSequenceDictionary())) {
+					throw new IllegalArgumentException("Streaming mode requires identical sequence dictionaries: " + files[i]);
+				}
+				
+				iterators[i] = readers[i].iterator();
+				heads[i] = iterators[i].hasNext() ? iterators[i].next() : null;
+			}
+			
+			int ref = -1;
+			while(true) {
+				// pick the next record in coordinate order across all inputs, unplaced reads sort last
+				int next = -1;
+				for(int i = 0; i < heads.length; i++) {
+					if(heads[i] != null && heads[i].getReferenceIndex() >= 0
+							&& (next < 0 || compare(heads[i], heads[next]) < 0)) {
+						next = i;
+					}
+				}
+				
+				if(next < 0) {
+					break;
+				}
+				
+				SAMRecord record = heads[next];
+				if(record.getReferenceIndex() != ref) {
+					endChromosome(listener);
+					ref = record.getReferenceIndex();
+					startChromosome(record.getReferenceName());
+				}
+				
+				if(chr != null) {
+					// every later record starts at or after this one, so no later read can reach windows before it
+					flushUpTo(Math.max(0, ((record.getAlignmentStart() - 1) - (WINDOW_SIZE - STEP_SIZE)) / STEP_SIZE), listener);
+					if(!record.getReadUnmappedFlag()) {
+						count(record, isSample[next]);
+					}
+				}
+				
+				heads[next] = iterators[next].hasNext() ? iterators[next].next() : null;
+				if(heads[next] != null && heads[next].getReferenceIndex() >= 0 && compare(heads[next], record) < 0) {
+					throw new IllegalStateException("Input is not coordinate-sorted: " + files[next] + " at "
+							+ heads[next].getReferenceName() + ":" + heads[next].getAlignmentStart());
+				}
+			}
+			
+			endChromosome(listener);
+		} finally {
+			for(int i = 0; i < files.length; i++) {
+				if(iterators[i] != null) {
+					iterators[i].close();
+				}
+				if(readers[i] != null) {
+					readers[i].close();
+				}
+			}
+		}
+	}
+	
+	private static int compare(SAMRecord a, SAMRecord b) {
+		if(a.getReferenceIndex().intValue() != b.getReferenceIndex().intValue()) {
+			return a.getReferenceIndex() < b.getReferenceIndex() ? -1 : 1;
+		}
+		return Integer.compare(a.getAlignmentStart(), b.getAlignmentStart());
+	}
+	
+	private void startChromosome(String name) {
+		Integer size = genomeSizes.get(name);
+		chr = size == null ? null : name;
+		last = size == null ? -1 : WindowCounts.numWindows(size, STEP_SIZE) - 1;
+		base = 0;
+		top = 0;
+	}
+	
+	private void endChromosome(Listener listener) {
+		if(chr != null) {
+			flushUpTo(top, listener);
+			listener.endChromosome(chr);
+			chr = null;
+		}
+	}
+	
+	private void count(SAMRecord record, boolean sample) {
+		// alignment blocks are sorted, so their window ranges only need merging with the previous one
+		// this prevents a read that's spliced twice onto the same exon from being double counted on that exon
+		int range_start = -1, range_end = -1;
+		for(AlignmentBlock block : record.getAlignmentBlocks()) {
+			int start = Math.max(0, ((block.getReferenceStart() - 1) - (WINDOW_SIZE - STEP_SIZE)) / STEP_SIZE);
+			int end = Math.min(last, (block.getReferenceStart() - 1 + block.getLength()) / STEP_SIZE);
+			
+			if(range_end >= 0 && start <= range_end) {
+				range_end = Math.max(range_end, end);
+			} else {
+				increment(range_start, range_end, sample);
+				range_start = start;
+				range_end = end;
+			}
+		}
+		
+		increment(range_start, range_end, sample);
+	}
+	
+	private void increment(int start, int end, boolean sample) {
+		if(start < 0 || end < start) {
+			return;
+		}
+		
+		if(end - base >= sampleRing.length) {
+			grow(end - base + 1);
+		}
+		
+		int[] ring = sample ? sampleRing : controlRing;
+		for(int i = start; i <= end; i++) {
+			ring[i & mask]++;
+		}
+		top = Math.max(top, end + 1);
+	}
+	
+	private void grow(int capacity) {
+		int size = sampleRing.length;
+		while(size < capacity) {
+			size *= 2;
+		}
+		
+		int[] sample = new int[size], control = new int[size];
+		for(int w = base; w < top; w++) {
+			sample[w & (size - 1)] = sampleRing[w & mask];
+			control[w & (size - 1)] = controlRing[w & mask];
+		}
+		sampleRing = sample;
+		controlRing = control;
+		mask = size - 1;
+	}
+	
+	/**
+	 * Tests and releases every pending window below <code>limit</code>.
+	 */
+	private void flushUpTo(int limit, Listener listener) {
+		int end = Math.min(limit, top);
+		for(int w = base; w < end; w++) {
+			int sample_count = sampleRing[w & mask];
+			int control_count = controlRing[w & mask];
+			sampleRing[w & mask] = 0;
+			controlRing[w & mask] = 0;
+			
+			if(sample_count > 0 && (1.0 * sample_count / sampleReadCounts >= 1.0 * control_count / controlReadCounts)) {
+				double pvalue = pvalues.pvalue(sample_count, control_count);
+				if(pvalue <= RETAIN && pvalue <= pvalues.threshold()) {
+					listener.window(chr, w * STEP_SIZE, pvalue);
+				}
+			}
+		}
+		
+		base = Math.max(base, limit);
+		top = Math.max(top, base);
+	}
+}
@@ -0,0 +1,272 @@
+package edu.cornell.med.icb.masonlab.meripper.util;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Per-chromosome window counter. Window i covers [i * STEP_SIZE, i * STEP_SIZE + WINDOW_SIZE),
+ * so a chromosome of length L has L / STEP_SIZE + 1 windows.
+ * <p>
+ * Dense counters keep one int per window. In difference mode a range of windows is recorded as +1
+ * at its first window and -1 just past its last, so counting a read costs the same however many
+ * windows it spans. The counts only become readable after {@link #resolve()} turns the deltas into
+ * running sums.
+ * <p>
+ * Sparse counters (see {@link #sparse(int)}) keep only the covered windows, in an open-addressing
+ * hash of window to count, and have no difference mode. Their tables are only created on the first
+ * count, so a chromosome without reads costs next to nothing. WindowCountsFactory chooses between
+ * the two per chromosome.
+ */
+public class WindowCounts {
+	// sparse tables are grown to keep them at most half full
+	private static final int SPARSE_MIN_CAPACITY = 16;
+	
+	private final int numWindows;
+	private int[] counts;
+	private boolean deltas;
+	
+	// sparse: window + 1 per slot (0 for empty) and its count
+	private final boolean sparse;
+	private int[] keys;
+	private int[] values;
+	private int entries;
+	
+	public WindowCounts(int numWindows) {
+		this(numWindows, false);
+	}
+	
+	public WindowCounts(int numWindows, boolean deltas) {
+		// one extra slot for the -1 of a range ending at the last window
+		this.counts = new int[deltas ? numWindows + 1 : numWindows];
+		this.numWindows = numWindows;
+		this.deltas = deltas;
+		this.sparse = false;
+	}
+	
+	private WindowCounts(int numWindows, boolean deltas, boolean sparse) {
+		this.numWindows = numWindows;
+		this.deltas = deltas;
+		this.sparse = sparse;
+	}
+	
+	/**
+	 * A sparse counter of <code>numWindows</code> windows, empty until the first count.
+	 */
+	public static WindowCounts sparse(int numWindows) {
+		return new WindowCounts(numWindows, false, true);
+	}
+	
+	public static int numWindows(int chrSize, int step_size) {
+		return chrSize / step_size + 1;
+	}
+	
+	public void increment(int window) {
+		incrementRange(window, window);
+	}
+	
+	/**
+	 * Increments windows <code>start</code> through <code>end</code> (inclusive) by one. An empty
+	 * range (end < start, e.g. a block past the end of the chromosome) is ignored.
+	 */
+	public void incrementRange(int start, int end) {
+		if(end < start) {
+			return;
+		}
+		
+		if(sparse) {
+			for(int i = start; i <= end; i++) {
+				addSparse(i, 1);
+			}
+		} else if(deltas) {
+			counts[start]++;
+			counts[end + 1]--;
+		} else {
+			for(int i = start; i <= end; i++) {
+				counts[i]++;
+			}
+		}
+	}
+	
+	/**
+	 * Turns recorded deltas into window counts, a no-op if they already are.
+	 */
+	public void resolve() {
+		if(deltas) {
+			for(int i = 1; i < counts.length; i++) {
+				counts[i] += counts[i - 1];
+			}
+			deltas = false;
+		}
+	}
+	
+	/**
+	 * Overwrites the count of <code>window</code>, e.g. when loading cached counts.
+	 */
+	public void set(int window, int count) {
+		if(deltas) {
+			throw new IllegalStateException("Window counts are still deltas, resolve() them first");
+		}
+		if(sparse) {
+			int slot = keys == null ? -1 : slot(window);
+			if(slot >= 0 && keys[slot] != 0) {
+				values[slot] = count;
+			} else if(count != 0) {
+				addSparse(window, count);
+			}
+		} else {
+			counts[window] = count;
+		}
+	}
+	
+	/**
+	 * Overwrites all counts with the next size() values of <code>buffer</code>.
+	 */
+	public void set(IntBuffer buffer) {
+		if(deltas) {
+			throw new IllegalStateException("Window counts are still deltas, resolve() them first");
+		}
+		if(sparse) {
+			for(int i = 0; i < numWindows; i++) {
+				set(i, buffer.get());
+			}
+		} else {
+			buffer.get(counts, 0, numWindows);
+		}
+	}
+	
+	public int get(int window) {
+		if(deltas) {
+			throw new IllegalStateException("Window counts are still deltas, resolve() them first");
+		}
+		if(sparse) {
+			if(keys == null) {
+				return 0;
+			}
+			int slot = slot(window);
+			return keys[slot] != 0 ? values[slot] : 0;
+		}
+		return counts[window];
+	}
+	
+	/**
+	 * Adds another file's counts for the same chromosome into this one. Deltas add up like counts,
+	 * so only counters in different modes (e.g. one loaded from a count cache) are resolved first.
+	 */
+	public void add(WindowCounts other) {
+		if(!sparse && !other.sparse) {
+			if(deltas != other.deltas) {
+				resolve();
+				other.resolve();
+			}
+			for(int i = 0; i < numWindows; i++) {
+				counts[i] += other.counts[i];
+			}
+			return;
+		}
+		
+		resolve();
+		other.resolve();
+		for(int window : other.coveredWindows()) {
+			if(sparse) {
+				addSparse(window, other.get(window));
+			} else {
+				counts[window] += other.get(window);
+			}
+		}
+	}
+	
+	public int size() {
+		return numWindows;
+	}
+	
+	public boolean isSparse() {
+		return sparse;
+	}
+	
+	/**
+	 * The windows with a non-zero count, in increasing order.
+	 */
+	public int[] coveredWindows() {
+		resolve();
+		int[] windows;
+		int n = 0;
+		if(sparse) {
+			windows = new int[entries];
+			for(int slot = 0; keys != null && slot < keys.length; slot++) {
+				if(keys[slot] != 0 && values[slot] != 0) {
+					windows[n++] = keys[slot] - 1;
+				}
+			}
+			Arrays.sort(windows, 0, n);
+		} else {
+			for(int i = 0; i < numWindows; i++) {
+				if(counts[i] != 0) {
+					n++;
+				}
+			}
+			windows = new int[n];
+			n = 0;
+			for(int i = 0; i < numWindows; i++) {
+				if(counts[i] != 0) {
+					windows[n++] = i;
+				}
+			}
+		}
+		return n == windows.length ? windows : Arrays.copyOf(windows, n);
+	}
+	
+	private void addSparse(int window, int n) {
+		if(keys == null) {
+			keys = new int[SPARSE_MIN_CAPACITY];
+			values = new int[SPARSE_MIN_CAPACITY];
+		}
+		
+		int slot = slot(window);
+		if(keys[slot] != 0) {
+			values[slot] += n;
+			return;
+		}
+		
+		keys[slot] = window + 1;
+		values[slot] = n;
+		entries++;
+		if(2 * entries > keys.length) {
+			grow();
+		}
+	}
+	
+	/**
+	 * The slot holding <code>window</code>, or the empty slot where it would go.
+	 */
+	private int slot(int window) {
+		int mask = keys.length - 1;
+		int slot = hash(window) & mask;
+		while(keys[slot] != 0 && keys[slot] != window + 1) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+	
+	private static int hash(int window) {
+		// neighbouring windows are counted together, so spread them over the table
+		int h = window * 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+	
+	private void grow() {
+		int[] oldKeys = keys, oldValues = values;
+		keys = new int[2 * oldKeys.length];
+		values = new int[2 * oldKeys.length];
+		int mask = keys.length - 1;
+		for(int i = 0; i < oldKeys.length; i++) {
+			if(oldKeys[i] != 0) {
+				int slot = hash(oldKeys[i] - 1) & mask;
+				while(keys[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+}
@@ -0,0 +1,264 @@
+package edu.cornell.med.icb.masonlab.meripper.util;
+
+import htsjdk.samtools.AlignmentBlock;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SamReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chooses, per window configuration and chromosome, how the input files' WindowCounts store their
+ * counts, and projects what the counters will take before any read is counted:
+ * <ul>
+ * <li>DENSE, an int per window, for chromosomes whose windows are mostly covered;</li>
+ * <li>SPARSE, an open-addressing hash of covered windows, where the reads cover few of them;</li>
+ * <li>LAZY, a sparse counter whose table is only created on the first read, for chromosomes the
+ * indexes list no reads on (unplaced scaffolds, decoys, chrM-less libraries).</li>
+ * </ul>
+ * The covered windows of a chromosome are estimated from the reads each input's BAM index lists on
+ * it and the mean aligned length of a sample of reads, as if no two reads shared a window, so the
+ * estimate is an upper bound. A chromosome goes SPARSE when that halves its footprint. Under a
+ * memory budget the DENSE chromosomes saving the most are then made SPARSE until the projection
+ * fits. Without an index the reads of an input are unknown, and its counters are projected dense.
+ */
+public class WindowCountsFactory {
+	public enum Storage { DENSE, SPARSE, LAZY }
+	
+	// a sparse table's slots are a key and a value, kept between a quarter and half full
+	private static final int SPARSE_ENTRY_BYTES = 24;
+	// a counter object with its array headers and its entry in the per-file counter map
+	private static final int COUNTER_BYTES = 96;
+	// reads sampled from each input for the mean aligned length
+	private static final int SAMPLED_READS = 10000;
+	
+	private final Map<String, Integer> genomeSizes;
+	private final int[][] windows;
+	private final boolean deltas;
+	private final List<String> files = new ArrayList<String>();
+	// per chromosome, the indexed reads of each file, -1 for a file without an index
+	private final Map<String, List<Long>> reads = new HashMap<String, List<Long>>();
+	private long sampledReads = 0;
+	private long sampledBases = 0;
+	
+	private final List<Map<String, Storage>> storage = new ArrayList<Map<String, Storage>>();
+	private final List<Map<String, Long>> projected = new ArrayList<Map<String, Long>>();
+	
+	/**
+	 * Counters for the window configurations <code>windows</code> ({window size, step size} each);
+	 * dense ones count in difference mode if <code>deltas</code>.
+	 */
+	public WindowCountsFactory(Map<String, Integer> genomeSizes, int[][] windows, boolean deltas) {
+		this.genomeSizes = genomeSizes;
+		this.windows = windows;
+		this.deltas = deltas;
+		for(String chr : genomeSizes.keySet()) {
+			reads.put(chr, new ArrayList<Long>());
+		}
+	}
+	
+	/**
+	 * Adds an input file whose counters this factory will create.
+	 */
+	public void observe(File file) throws IOException {
+		files.add(file.getName());
+		Map<String, Long> indexed = CountProgress.indexedReadsPerChromosome(file);
+		for(Map.Entry<String, List<Long>> chr : reads.entrySet()) {
+			Long n = indexed == null ? null : indexed.get(chr.getKey());
+			chr.getValue().add(indexed == null ? -1 : n == null ? 0 : n);
+		}
+		
+		SamReader reader = ReadCounter.open(file);
+		try {
+			SAMRecordIterator iterator = reader.iterator();
+			for(int sampled = 0; sampled < SAMPLED_READS && iterator.hasNext(); ) {
+				SAMRecord record = iterator.next();
+				if(!record.getReadUnmappedFlag()) {
+					for(AlignmentBlock block : record.getAlignmentBlocks()) {
+						sampledBases += block.getLength();
+					}
+					sampledReads++;
+					sampled++;
+				}
+			}
+			iterator.close();
+		} finally {
+			reader.close();
+		}
+	}
+	
+	/**
+	 * Chooses every counter's storage, keeping the projection within <code>maxMemory</code> bytes
+	 * if it is positive, and logs the projected footprint.
+	 */
+	public void plan(long maxMemory) {
+		storage.clear();
+		projected.clear();
+		List<Choice> dense = new ArrayList<Choice>();
+		long total = 0;
+		for(int c = 0; c < windows.length; c++) {
+			Map<String, Storage> config_storage = new HashMap<String, Storage>();
+			Map<String, Long> config_projected = new HashMap<String, Long>();
+			storage.add(config_storage);
+			projected.add(config_projected);
+			
+			for(Map.Entry<String, Integer> chr : genomeSizes.entrySet()) {
+				Choice choice = new Choice(c, chr.getKey(), chr.getValue());
+				if(choice.storage == Storage.DENSE) {
+					dense.add(choice);
+				}
+				config_storage.put(chr.getKey(), choice.storage);
+				config_projected.put(chr.getKey(), choice.bytes());
+				total += choice.bytes();
+			}
+		}
+		
+		if(maxMemory > 0 && total > maxMemory) {
+			Collections.sort(dense, new Comparator<Choice>() {
+				@Override
+				public int compare(Choice a, Choice b) {
+					return Long.compare(b.denseBytes - b.sparseBytes, a.denseBytes - a.sparseBytes);
+				}});
+			for(Choice choice : dense) {
+				if(total <= maxMemory || choice.sparseBytes >= choice.denseBytes) {
+					break;
+				}
+				total -= choice.denseBytes - choice.sparseBytes;
+				choice.storage = Storage.SPARSE;
+				storage.get(choice.config).put(choice.chr, Storage.SPARSE);
+				projected.get(choice.config).put(choice.chr, choice.sparseBytes);
+			}
+		}
+		
+		for(int c = 0; c < windows.length; c++) {
+			int[] counts = new int[Storage.values().length];
+			long[] bytes = new long[Storage.values().length];
+			for(Map.Entry<String, Storage> chr : storage.get(c).entrySet()) {
+				counts[chr.getValue().ordinal()]++;
+				bytes[chr.getValue().ordinal()] += projected.get(c).get(chr.getKey());
+			}
+			System.err.println("Counters" + (windows.length > 1 ? " for WINDOW_SIZE " + windows[c][0] + ", STEP_SIZE " + windows[c][1] : "")
+					+ ": " + counts[Storage.DENSE.ordinal()] + " dense (" + megabytes(bytes[Storage.DENSE.ordinal()]) + "), "
+					+ counts[Storage.SPARSE.ordinal()] + " sparse (" + megabytes(bytes[Storage.SPARSE.ordinal()]) + "), "
+					+ counts[Storage.LAZY.ordinal()] + " lazy (" + megabytes(bytes[Storage.LAZY.ordinal()]) + ") per "
+					+ files.size() + " input files");
+		}
+		
+		String budget = maxMemory > 0 ? "--max-memory " + megabytes(maxMemory) : "max heap " + megabytes(Runtime.getRuntime().maxMemory());
+		System.err.println("Projected counter footprint: " + megabytes(total) + " of " + budget
+				+ (sampledReads > 0 ? ", mean aligned length " + sampledBases / sampledReads : ""));
+		if(total > (maxMemory > 0 ? maxMemory : Runtime.getRuntime().maxMemory())) {
+			System.err.println("WARNING: the projected counter footprint exceeds the " + budget);
+		}
+	}
+	
+	/**
+	 * A fresh counter for <code>chr</code> in window configuration <code>config</code>.
+	 */
+	public WindowCounts create(int config, String chr) {
+		int numWindows = WindowCounts.numWindows(genomeSizes.get(chr), windows[config][1]);
+		return storage(config, chr) == Storage.DENSE ? new WindowCounts(numWindows, deltas) : WindowCounts.sparse(numWindows);
+	}
+	
+	public Storage storage(int config, String chr) {
+		return storage.isEmpty() ? Storage.DENSE : storage.get(config).get(chr);
+	}
+	
+	/**
+	 * The projected bytes of all counters.
+	 */
+	public long projectedBytes() {
+		long total = 0;
+		for(Map<String, Long> config : projected) {
+			for(long bytes : config.values()) {
+				total += bytes;
+			}
+		}
+		return total;
+	}
+	
+	/**
+	 * How many counters of all configurations use <code>kind</code>.
+	 */
+	public int count(Storage kind) {
+		int n = 0;
+		for(Map<String, Storage> config : storage) {
+			for(Storage s : config.values()) {
+				if(s == kind) {
+					n++;
+				}
+			}
+		}
+		return n;
+	}
+	
+	/**
+	 * One chromosome's counters in one configuration, over all input files.
+	 */
+	private class Choice {
+		final int config;
+		final String chr;
+		final long denseBytes;
+		final long sparseBytes;
+		Storage storage;
+		
+		Choice(int config, String chr, int chrSize) {
+			this.config = config;
+			this.chr = chr;
+			int window_size = windows[config][0], step_size = windows[config][1];
+			long numWindows = WindowCounts.numWindows(chrSize, step_size);
+			// a read's windows: those its aligned bases fall in, plus those reaching back to its start
+			long meanLength = sampledReads > 0 ? sampledBases / sampledReads : 0;
+			long readWindows = (meanLength + window_size - step_size) / step_size + 1;
+			
+			long dense = 0, sparse = 0;
+			boolean anyReads = false;
+			for(long n : reads.get(chr)) {
+				dense += COUNTER_BYTES + 4 * (deltas ? numWindows + 1 : numWindows);
+				long covered = n < 0 ? numWindows : Math.min(numWindows, n * readWindows);
+				sparse += COUNTER_BYTES + SPARSE_ENTRY_BYTES * covered;
+				anyReads |= n != 0;
+			}
+			
+			this.denseBytes = dense;
+			this.sparseBytes = sparse;
+			this.storage = !anyReads ? Storage.LAZY : 2 * sparse <= dense ? Storage.SPARSE : Storage.DENSE;
+		}
+		
+		long bytes() {
+			return storage == Storage.DENSE ? denseBytes : storage == Storage.SPARSE ? sparseBytes : COUNTER_BYTES * reads.get(chr).size();
+		}
+	}
+	
+	/**
+	 * Parses a byte count with an optional K, M, G or T suffix (powers of 1024), e.g. 8G.
+	 */
+	public static long parseBytes(String value) {
+		String s = value.trim().toUpperCase();
+		long unit = 1;
+		if(s.endsWith("B")) {
+			s = s.substring(0, s.length() - 1);
+		}
+		int suffix = s.isEmpty() ? -1 : "KMGT".indexOf(s.charAt(s.length() - 1));
+		if(suffix >= 0) {
+			unit = 1L << (10 * (suffix + 1));
+			s = s.substring(0, s.length() - 1);
+		}
+		try {
+			return (long) (Double.parseDouble(s) * unit);
+		} catch(NumberFormatException e) {
+			throw new IllegalArgumentException("Not a byte count: " + value);
+		}
+	}
+	
+	private static String megabytes(long bytes) {
+		return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+	}
+}
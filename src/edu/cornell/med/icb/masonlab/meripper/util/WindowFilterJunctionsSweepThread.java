@@ -0,0 +1,351 @@
+package edu.cornell.med.icb.masonlab.meripper.util;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * Array-based equivalent of the IntervalTree junction filter MeRIPPeR used to run, with the same
+ * output. The merged windows and the significant junction flanks are kept in two arrays of closed
+ * intervals sorted by (start, end), with a mark per interval. Merged windows don't overlap one
+ * another, so their ends are sorted too: one binary search finds the first window overlapping a
+ * query and the windows up to the first starting after it are exactly its overlappers. A flank is
+ * never longer than WINDOW_SIZE + 1, so one overlapping a query starts at most that much before it;
+ * the flanks scanned are the overlapping ones and a flank's length of neighbours, however long the
+ * merged windows around them. Queries allocate nothing.
+ * <p>
+ * Every junction ending at j shares the acceptor query [j, j + WINDOW_SIZE - 1], which is that
+ * junction's acceptor flank in the JunctionIndex. The acceptor flanks are hashed by j, so its span is
+ * worked out and its overlappers marked once per acceptor rather than once per junction.
+ * <p>
+ * It keeps the tree version's rules, down to its quirks: a significant flank with exactly the
+ * coordinates of a merged window replaces it, unmarked, as a tree put of the same key would; lengths
+ * are end - start of closed intervals; and of the acceptor flank's overlappers, the first (in
+ * (start, end) order) is not marked by a donor/acceptor pair.
+ */
+public class WindowFilterJunctionsSweepThread implements Callable<Integer> {
+	private static final int EMPTY = 0, UNMARKED = 1, MARKED = 2;
+	private static final int SLOT = 3;
+	
+	private final WindowPValues pvalues;
+	private final JunctionIndex junctions;
+	private final double[] junction_pvalues;
+	private final int CHR_MAX;
+	private final int WINDOW_MIN;
+	private final int WINDOW_SIZE;
+	private final double ALPHA;
+	private final List<Interval> final_list;
+	private final Map<Integer, Set<Integer>> junctions_map;
+	
+	// the merged windows and the significant flanks, each sorted by (start, end), and whether each is kept
+	private int[] windowStarts;
+	private int[] windowEnds;
+	private boolean[] windowMarked;
+	private int windows;
+	private int[] flankStarts;
+	private int[] flankEnds;
+	private boolean[] flankMarked;
+	private int flanks;
+	private int maxFlank;
+	
+	// the acceptor flanks of all junctions, hashed by j: per slot j, the flank's span once worked
+	// out (Integer.MIN_VALUE until then) and EMPTY, UNMARKED or MARKED
+	private int[] acceptors;
+	private int acceptorShift;
+	
+	public WindowFilterJunctionsSweepThread(WindowPValues pvalues, JunctionIndex junctions, double[] junction_pvalues,
+			Map<Integer, Set<Integer>> junctions_map,
+			int window_size, int chr_max, int window_min, List<Interval> list, double alpha) {
+		this.pvalues = pvalues;
+		this.junctions = junctions;
+		this.junction_pvalues = junction_pvalues;
+		this.CHR_MAX = chr_max;
+		this.WINDOW_MIN = window_min;
+		this.WINDOW_SIZE = window_size;
+		this.final_list = list;
+		this.ALPHA = alpha;
+		this.junctions_map = junctions_map;
+	}
+	
+	@Override
+	public Integer call() {
+		// the significant flanks, in JunctionIndex's (start, end) order
+		flanks = 0;
+		for(int id = 0; id < junctions.size(); id++) {
+			if(junction_pvalues[id] <= ALPHA) {
+				flanks++;
+			}
+		}
+		
+		flankStarts = new int[flanks];
+		flankEnds = new int[flanks];
+		flankMarked = new boolean[flanks];
+		maxFlank = 0;
+		for(int id = 0, f = 0; id < junctions.size(); id++) {
+			if(junction_pvalues[id] <= ALPHA) {
+				flankStarts[f] = junctions.start(id);
+				flankEnds[f] = junctions.end(id);
+				maxFlank = Math.max(maxFlank, flankEnds[f] - flankStarts[f]);
+				f++;
+			}
+		}
+		
+		// merged significant windows as closed intervals, marked if long enough on their own
+		windowStarts = new int[16];
+		windowEnds = new int[16];
+		windowMarked = new boolean[16];
+		windows = 0;
+		int w = 0;
+		while(w < pvalues.size() && pvalues.pvalue(w) > ALPHA) {
+			w++;
+		}
+		
+		if(w < pvalues.size()) {
+			int prev_start = pvalues.window(w);
+			int prev_end = Math.min(prev_start + WINDOW_SIZE, CHR_MAX);
+			int f = 0;
+			for(w++; w <= pvalues.size(); w++) {
+				int start = -1, end = -1;
+				if(w < pvalues.size()) {
+					if(pvalues.pvalue(w) > ALPHA) {
+						continue;
+					}
+					start = pvalues.window(w);
+					end = Math.min(start + WINDOW_SIZE, CHR_MAX);
+					if(prev_end >= start) {
+						// merged case
+						prev_end = Math.max(prev_end, end);
+						continue;
+					}
+				}
+				
+				// a flank equal to the window replaces it
+				while(f < flanks && compare(flankStarts[f], flankEnds[f], prev_start, prev_end - 1) < 0) {
+					f++;
+				}
+				if(f == flanks || compare(flankStarts[f], flankEnds[f], prev_start, prev_end - 1) != 0) {
+					if(windows == windowStarts.length) {
+						windowStarts = Arrays.copyOf(windowStarts, 2 * windows);
+						windowEnds = Arrays.copyOf(windowEnds, 2 * windows);
+						windowMarked = Arrays.copyOf(windowMarked, 2 * windows);
+					}
+					windowStarts[windows] = prev_start;
+					windowEnds[windows] = prev_end - 1;
+					windowMarked[windows] = prev_end - prev_start >= WINDOW_MIN;
+					windows++;
+				}
+				
+				prev_start = start;
+				prev_end = end;
+			}
+		}
+		
+		// marks only ever get set, so the order of the queries doesn't matter
+		for(int f = 0; f < flanks; f++) {
+			// the flank is one of its own overlappers
+			if(span(flankStarts[f], flankEnds[f]) >= WINDOW_MIN) {
+				mark(flankStarts[f], flankEnds[f], false);
+			}
+		}
+		
+		hashAcceptors();
+		for(Map.Entry<Integer, Set<Integer>> donor : junctions_map.entrySet()) {
+			int i = donor.getKey();
+			int donorLength = span(i - WINDOW_SIZE, i - 1);
+			boolean donorMarked = false;
+			
+			for(int j : donor.getValue()) {
+				int acceptor = acceptorSlot(j);
+				if(acceptors[acceptor + 1] == Integer.MIN_VALUE) {
+					acceptors[acceptor + 1] = span(j, j + WINDOW_SIZE - 1);
+				}
+				int length = donorLength + acceptors[acceptor + 1];
+				
+				if(length >= WINDOW_MIN) {
+					if(!donorMarked) {
+						mark(i - WINDOW_SIZE, i - 1, false);
+						donorMarked = true;
+					}
+					if(acceptors[acceptor + 2] != MARKED) {
+						mark(j, j + WINDOW_SIZE - 1, true);
+						acceptors[acceptor + 2] = MARKED;
+					}
+				}
+			}
+		}
+		
+		// merge the marked intervals of both lists in (start, end) order
+		boolean any = false;
+		int prev_start = 0, prev_end = 0;
+		for(int k = 0, f = 0; k < windows || f < flanks; ) {
+			int start, end;
+			boolean marked;
+			if(f == flanks || (k < windows && compare(windowStarts[k], windowEnds[k], flankStarts[f], flankEnds[f]) < 0)) {
+				start = windowStarts[k];
+				end = windowEnds[k];
+				marked = windowMarked[k];
+				k++;
+			} else {
+				start = flankStarts[f];
+				end = flankEnds[f];
+				marked = flankMarked[f];
+				f++;
+			}
+			
+			if(!marked) {
+				continue;
+			}
+			if(!any) {
+				prev_start = start;
+				prev_end = end;
+				any = true;
+			} else if(prev_end >= start) {
+				// merged case
+				prev_end = Math.max(prev_end, end);
+			} else {
+				final_list.add(new Interval(prev_start, prev_end + 1));
+				
+				prev_start = start;
+				prev_end = end;
+			}
+		}
+		
+		if(any) {
+			final_list.add(new Interval(prev_start, prev_end + 1));
+		}
+		
+		return 0;
+	}
+	
+	private void hashAcceptors() {
+		int count = 0;
+		for(int id = 0; id < junctions.size(); id++) {
+			if(junctions.end(id) - junctions.start(id) == WINDOW_SIZE - 1) {
+				count++;
+			}
+		}
+		
+		// for every j of junctions_map, whose flanks the index was built from; at most half full
+		int capacity = Math.max(2, Integer.highestOneBit(Math.max(1, count)) << 2);
+		acceptorShift = 32 - Integer.numberOfTrailingZeros(capacity);
+		acceptors = new int[SLOT * capacity];
+		for(int id = 0; id < junctions.size(); id++) {
+			if(junctions.end(id) - junctions.start(id) == WINDOW_SIZE - 1) {
+				int j = junctions.start(id);
+				int slot = (j * 0x9E3779B9) >>> acceptorShift;
+				while(acceptors[SLOT * slot + 2] != EMPTY) {
+					slot = (slot + 1) & (capacity - 1);
+				}
+				acceptors[SLOT * slot] = j;
+				acceptors[SLOT * slot + 1] = Integer.MIN_VALUE;
+				acceptors[SLOT * slot + 2] = UNMARKED;
+			}
+		}
+	}
+	
+	/**
+	 * The offset in <code>acceptors</code> of the acceptor flank starting at <code>j</code>.
+	 */
+	private int acceptorSlot(int j) {
+		int capacity = acceptors.length / SLOT;
+		int slot = (j * 0x9E3779B9) >>> acceptorShift;
+		while(acceptors[SLOT * slot] != j || acceptors[SLOT * slot + 2] == EMPTY) {
+			if(acceptors[SLOT * slot + 2] == EMPTY) {
+				throw new IllegalArgumentException("no acceptor flank at " + j + " in the junction index");
+			}
+			slot = (slot + 1) & (capacity - 1);
+		}
+		return SLOT * slot;
+	}
+	
+	private static int compare(int start1, int end1, int start2, int end2) {
+		return start1 != start2 ? Integer.compare(start1, start2) : Integer.compare(end1, end2);
+	}
+	
+	/**
+	 * end - start of the bounding interval of the intervals overlapping [start, end], 0 if none.
+	 */
+	private int span(int start, int end) {
+		int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+		boolean any = false;
+		for(int k = firstWindow(start); k < windows && windowStarts[k] <= end; k++) {
+			min = Math.min(min, windowStarts[k]);
+			max = Math.max(max, windowEnds[k]);
+			any = true;
+		}
+		
+		for(int f = firstFlank(start); f < flanks && flankStarts[f] <= end; f++) {
+			if(flankEnds[f] >= start) {
+				min = Math.min(min, flankStarts[f]);
+				max = Math.max(max, flankEnds[f]);
+				any = true;
+			}
+		}
+		return any ? max - min : 0;
+	}
+	
+	/**
+	 * Marks the intervals overlapping [start, end], except the first of them if <code>skipFirst</code>.
+	 */
+	private void mark(int start, int end, boolean skipFirst) {
+		int k = firstWindow(start);
+		int f = firstFlank(start);
+		while(f < flanks && flankStarts[f] <= end && flankEnds[f] < start) {
+			f++;
+		}
+		
+		if(skipFirst) {
+			boolean window = k < windows && windowStarts[k] <= end;
+			boolean flank = f < flanks && flankStarts[f] <= end;
+			if(window && (!flank || compare(windowStarts[k], windowEnds[k], flankStarts[f], flankEnds[f]) < 0)) {
+				k++;
+			} else if(flank) {
+				f++;
+			}
+		}
+		
+		for(; k < windows && windowStarts[k] <= end; k++) {
+			windowMarked[k] = true;
+		}
+		for(; f < flanks && flankStarts[f] <= end; f++) {
+			if(flankEnds[f] >= start) {
+				flankMarked[f] = true;
+			}
+		}
+	}
+	
+	/**
+	 * First window ending at or after <code>start</code>.
+	 */
+	private int firstWindow(int start) {
+		int lo = 0, hi = windows;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(windowEnds[mid] < start) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+	
+	/**
+	 * First flank that may overlap a query starting at <code>start</code>: no flank starting more
+	 * than maxFlank before it reaches it.
+	 */
+	private int firstFlank(int start) {
+		int lo = 0, hi = flanks;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(flankStarts[mid] < start - maxFlank) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+}
@@ -0,0 +1,61 @@
+package edu.cornell.med.icb.masonlab.meripper.util;
+
+import java.util.Arrays;
+
+/**
+ * Growable (window start, p-value) list for one chromosome. Windows are appended in
+ * ascending order by the Fisher's test threads, so the list is always sorted by start.
+ */
+public class WindowPValues {
+	private int[] windows;
+	private double[] pvalues;
+	private int size;
+	
+	public WindowPValues() {
+		this(16);
+	}
+	
+	public WindowPValues(int capacity) {
+		this.windows = new int[Math.max(capacity, 1)];
+		this.pvalues = new double[Math.max(capacity, 1)];
+		this.size = 0;
+	}
+	
+	public void add(int window, double pvalue) {
+		if(size == windows.length) {
+			windows = Arrays.copyOf(windows, size * 2);
+			pvalues = Arrays.copyOf(pvalues, size * 2);
+		}
+		
+		windows[size] = window;
+		pvalues[size] = pvalue;
+		size++;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public int window(int i) {
+		return windows[i];
+	}
+	
+	public double pvalue(int i) {
+		return pvalues[i];
+	}
+	
+	/**
+	 * Copies out the p-values at or below <code>alpha</code>, in window order.
+	 */
+	public double[] pvaluesAtMost(double alpha) {
+		double[] selected = new double[size];
+		int n = 0;
+		for(int i = 0; i < size; i++) {
+			if(pvalues[i] <= alpha) {
+				selected[n++] = pvalues[i];
+			}
+		}
+		
+		return n == size ? selected : Arrays.copyOf(selected, n);
+	}
+}
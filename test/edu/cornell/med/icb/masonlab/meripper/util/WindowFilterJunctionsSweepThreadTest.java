@@ -0,0 +1,125 @@
+package edu.cornell.med.icb.masonlab.meripper.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * WindowFilterJunctionsSweepThread against WindowFilterJunctionsThread, the IntervalTree version it
+ * replaced, on random chromosomes.
+ */
+public class WindowFilterJunctionsSweepThreadTest {
+	/**
+	 * Many small chromosomes, with steps down to 1 bp so that merged windows and junction flanks share
+	 * coordinates, and windows clipped at the chromosome end.
+	 */
+	@Test
+	public void sameAsTreeOnSmallChromosomes() throws Exception {
+		Random random = new Random(1);
+		int[] steps = {1, 5, 10, 25};
+		int[] windowSizes = {5, 25, 50};
+		int[] minimums = {0, 25, 50, 100, 200};
+		for(int c = 0; c < 20000; c++) {
+			int step = steps[random.nextInt(steps.length)];
+			int window = Math.max(step, windowSizes[random.nextInt(windowSizes.length)]);
+			Case input = new Case(random, 200 + random.nextInt(4000), window, step, minimums[random.nextInt(minimums.length)],
+					1 + random.nextInt(40), 5000, random.nextDouble(), random.nextDouble(), 0.1);
+			
+			assertEquals("case " + c + " (window " + window + ", step " + step + ", min " + input.min + ")",
+					toString(input.tree()), toString(input.sweep()));
+		}
+	}
+	
+	/**
+	 * Long merged windows with many junctions inside them, the case where overlap queries can't stop
+	 * at the first interval ending before them.
+	 */
+	@Test
+	public void sameAsTreeInsideLongWindows() throws Exception {
+		Random random = new Random(2);
+		for(int c = 0; c < 200; c++) {
+			Case input = new Case(random, 20000 + random.nextInt(20000), 25, 25, 100, 200 + random.nextInt(400), 300,
+					0.5, random.nextDouble(), 0.001);
+			
+			assertEquals("case " + c, toString(input.tree()), toString(input.sweep()));
+		}
+	}
+	
+	/**
+	 * One chromosome's filter input: windows with p-values at every step, in runs that start and end
+	 * with probability <code>runChange</code> per window and are significant with probability
+	 * <code>significant</code>, and random junctions up to <code>maxIntron</code> long, a fraction
+	 * <code>significantJunctions</code> of whose flanks are below alpha.
+	 */
+	private static class Case {
+		final int chrSize, window, min;
+		final double alpha = 0.05;
+		final WindowPValues pvalues = new WindowPValues();
+		final Map<Integer, Set<Integer>> junctions_map = new HashMap<Integer, Set<Integer>>();
+		final JunctionIndex index;
+		final double[] junction_pvalues;
+		
+		Case(Random random, int chrSize, int window, int step, int min, int junctions, int maxIntron, double significant,
+				double significantJunctions, double runChange) {
+			this.chrSize = chrSize;
+			this.window = window;
+			this.min = min;
+			
+			// runs of significant windows, as enriched regions give
+			boolean inRun = false;
+			for(int start = 0; start < chrSize; start += step) {
+				if(random.nextDouble() < runChange) {
+					inRun = random.nextDouble() < significant;
+				}
+				if(random.nextDouble() < 0.5) {
+					pvalues.add(start, inRun ? alpha * random.nextDouble() : alpha + random.nextDouble() * (1 - alpha));
+				}
+			}
+			
+			for(int j = 0; j < junctions; j++) {
+				int start = random.nextInt(chrSize);
+				int end = Math.min(chrSize - 1, start + 1 + random.nextInt(Math.max(1, Math.min(chrSize / 4, maxIntron))));
+				Set<Integer> ends = junctions_map.get(start);
+				if(ends == null) {
+					ends = new HashSet<Integer>();
+					junctions_map.put(start, ends);
+				}
+				ends.add(end);
+			}
+			
+			index = new JunctionIndex(junctions_map, window);
+			junction_pvalues = new double[index.size()];
+			for(int id = 0; id < index.size(); id++) {
+				junction_pvalues[id] = random.nextDouble() < significantJunctions ? alpha * random.nextDouble() : 1.0;
+			}
+		}
+		
+		List<Interval> tree() throws Exception {
+			List<Interval> list = new ArrayList<Interval>();
+			new WindowFilterJunctionsThread(pvalues, index, junction_pvalues, junctions_map, window, chrSize, min, list, alpha).call();
+			return list;
+		}
+		
+		List<Interval> sweep() {
+			List<Interval> list = new ArrayList<Interval>();
+			new WindowFilterJunctionsSweepThread(pvalues, index, junction_pvalues, junctions_map, window, chrSize, min, list, alpha).call();
+			return list;
+		}
+	}
+	
+	private static String toString(List<Interval> intervals) {
+		StringBuilder s = new StringBuilder();
+		for(Interval interval : intervals) {
+			s.append(s.length() > 0 ? " " : "").append('[').append(interval.start).append(',').append(interval.end).append(')');
+		}
+		return s.toString();
+	}
+}
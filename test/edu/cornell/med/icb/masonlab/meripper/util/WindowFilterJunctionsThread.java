@@ -3,7 +3,6 @@ package edu.cornell.med.icb.masonlab.meripper.util;
 import htsjdk.samtools.util.IntervalTree;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -11,8 +10,9 @@ import java.util.Set;
 import java.util.concurrent.Callable;
 
 public class WindowFilterJunctionsThread implements Callable<Integer>{
-	private final Map<Integer, Double> pvalues;
-	private final IntervalTree<Double> junctions;
+	private final WindowPValues pvalues;
+	private final JunctionIndex junctions;
+	private final double[] junction_pvalues;
 	private final int CHR_MAX;
 	private final int WINDOW_MIN;
 	private final int WINDOW_SIZE;
@@ -20,11 +20,12 @@ public class WindowFilterJunctionsThread implements Callable<Integer>{
 	private final List<Interval> final_list;
 	private final Map<Integer, Set<Integer>> junctions_map;
 
-	public WindowFilterJunctionsThread(Map<Integer, Double> pvalues, IntervalTree<Double> junctions,
+	public WindowFilterJunctionsThread(WindowPValues pvalues, JunctionIndex junctions, double[] junction_pvalues,
 			Map<Integer, Set<Integer>> junctions_map,
 			int window_size, int chr_max, int window_min, List<Interval> list, double alpha) {
 		this.pvalues = pvalues;
 		this.junctions = junctions;
+		this.junction_pvalues = junction_pvalues;
 		this.CHR_MAX = chr_max;
 		this.WINDOW_MIN = window_min;
 		this.WINDOW_SIZE = window_size;
@@ -36,58 +37,57 @@ public class WindowFilterJunctionsThread implements Callable<Integer>{
 	@Override
 	public Integer call() throws Exception {
 		IntervalTree<Integer> tree = new IntervalTree<Integer>();
-		if(pvalues.size() > 0) {
-			List<Integer> windows_indexes = new ArrayList<Integer>(pvalues.keySet());
-			for(Iterator<Integer> i = windows_indexes.iterator(); i.hasNext(); ) {
-				if(pvalues.get(i.next()) > ALPHA) {
-					i.remove();
-				}
-			}
-			Collections.sort(windows_indexes);
-			
-			if(windows_indexes.size() > 0) {
-				int prev_start = windows_indexes.get(0);
-				int prev_end = Math.min(prev_start + WINDOW_SIZE, CHR_MAX);
-				for(int j = 1; j < windows_indexes.size(); j++) {
-					int i = windows_indexes.get(j);
-					// this window has a significant p-value
-					int start = i;
-					int end = Math.min(start + WINDOW_SIZE, CHR_MAX);
-					
-					if(prev_end >= start) {
-						// merged case
-						prev_end = Math.max(prev_end, end);
-					} else {
-						if(prev_end - prev_start >= WINDOW_MIN) {
-							tree.put(prev_start, prev_end - 1, 1);
-						} else {
-							tree.put(prev_start, prev_end - 1, 0);
-						}
-						
-						prev_start = start;
-						prev_end = end;
-					}
+		// windows are already sorted by start, skip ahead to the first one passing alpha
+		int w = 0;
+		while(w < pvalues.size() && pvalues.pvalue(w) > ALPHA) {
+			w++;
+		}
+		
+		if(w < pvalues.size()) {
+			int prev_start = pvalues.window(w);
+			int prev_end = Math.min(prev_start + WINDOW_SIZE, CHR_MAX);
+			for(w++; w < pvalues.size(); w++) {
+				if(pvalues.pvalue(w) > ALPHA) {
+					continue;
 				}
 				
-				if(prev_end - prev_start >= WINDOW_MIN) {
-					tree.put(prev_start, prev_end - 1, 1);
+				// this window has a significant p-value
+				int start = pvalues.window(w);
+				int end = Math.min(start + WINDOW_SIZE, CHR_MAX);
+				
+				if(prev_end >= start) {
+					// merged case
+					prev_end = Math.max(prev_end, end);
 				} else {
-					tree.put(prev_start, prev_end - 1, 0);
+					if(prev_end - prev_start >= WINDOW_MIN) {
+						tree.put(prev_start, prev_end - 1, 1);
+					} else {
+						tree.put(prev_start, prev_end - 1, 0);
+					}
+					
+					prev_start = start;
+					prev_end = end;
 				}
 			}
+			
+			if(prev_end - prev_start >= WINDOW_MIN) {
+				tree.put(prev_start, prev_end - 1, 1);
+			} else {
+				tree.put(prev_start, prev_end - 1, 0);
+			}
 		}
 		
-		for(IntervalTree.Node<Double> node : junctions) {
-			if(node.getValue() <= ALPHA) {
-				tree.put(node.getStart(), node.getEnd(), 0);
+		for(int id = 0; id < junctions.size(); id++) {
+			if(junction_pvalues[id] <= ALPHA) {
+				tree.put(junctions.start(id), junctions.end(id), 0);
 			}
 		}
 		
-		for(IntervalTree.Node<Double> node : junctions) {
-			if(node.getValue() <= ALPHA) {
+		for(int id = 0; id < junctions.size(); id++) {
+			if(junction_pvalues[id] <= ALPHA) {
 				List<IntervalTree.Node<Integer>> list = new ArrayList<IntervalTree.Node<Integer>>();
-				int prev_start = node.getStart();
-				int prev_end = node.getEnd();
+				int prev_start = junctions.start(id);
+				int prev_end = junctions.end(id);
 				Iterator<IntervalTree.Node<Integer>> i = tree.overlappers(prev_start, prev_end);
 				while(i.hasNext()) {
 					IntervalTree.Node<Integer> interval = i.next();